@@ -19,32 +19,57 @@
 package com.idrsolutions.microservice;
 
 import com.idrsolutions.microservice.db.DBHandler;
+import com.idrsolutions.microservice.scheduling.ConversionScheduler;
+import com.idrsolutions.microservice.scheduling.ConversionTask;
+import com.idrsolutions.microservice.scheduling.MemoryBudget;
+import com.idrsolutions.microservice.utils.AdmissionControl;
+import com.idrsolutions.microservice.utils.ConversionIndex;
 import com.idrsolutions.microservice.utils.DownloadHelper;
+import com.idrsolutions.microservice.utils.FileHelper;
 import com.idrsolutions.microservice.utils.HttpHelper;
+import com.idrsolutions.microservice.utils.ProcessUtils;
+import com.idrsolutions.microservice.utils.StatusStream;
+import com.idrsolutions.microservice.utils.StatusWaiters;
 
 import javax.json.Json;
 import javax.json.JsonObjectBuilder;
 import javax.json.stream.JsonParser;
 import javax.json.stream.JsonParsingException;
 import javax.naming.SizeLimitExceededException;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,6 +81,25 @@ import java.util.logging.Logger;
 public abstract class BaseServlet extends HttpServlet {
     private static final Logger LOG = Logger.getLogger(BaseServlet.class.getName());
 
+    private static final Set<String> FINISHED_STATES = new HashSet<>(Arrays.asList("processed", "error", "cancelled"));
+
+    private static final Set<String> OUTPUT_STATUS_KEYS = Set.of("downloadUrl", "previewUrl");
+
+    /**
+     * The number of seconds clients may cache the status of a conversion that has not finished.
+     */
+    private static final int RUNNING_STATUS_MAX_AGE = 1;
+
+    /**
+     * The number of seconds clients may cache the status of a finished conversion before revalidating it.
+     */
+    private static final int FINISHED_STATUS_MAX_AGE = 60;
+
+    /**
+     * The upload being handled by the current upload queue thread, if any.
+     */
+    private static final ThreadLocal<Upload> CURRENT_UPLOAD = new ThreadLocal<>();
+
     protected static final String USER_HOME;
 
     static {
@@ -69,10 +113,9 @@ public abstract class BaseServlet extends HttpServlet {
     private static String INPUTPATH = USER_HOME + ".idr/input/";
     private static String OUTPUTPATH = USER_HOME + ".idr/output/";
 
-    private static long individualTTL = 86400000L; // 24 hours
-
-    private static final int NUM_DOWNLOAD_RETRIES = 2;
+    private final Map<String, Future<?>> downloads = new ConcurrentHashMap<>();
 
+    private static long individualTTL = 86400000L; // 24 hours
 
     /**
      * Get the location where input files is stored
@@ -139,8 +182,10 @@ public abstract class BaseServlet extends HttpServlet {
      * @param status the HTTP status to set the response to response.
      */
     protected static void doError(final HttpServletRequest request, final HttpServletResponse response, final String error, final int status) {
-        response.setStatus(status);
-        sendResponse(request, response, Json.createObjectBuilder().add("error", error).build().toString());
+        respond(() -> {
+            response.setStatus(status);
+            sendResponse(request, response, Json.createObjectBuilder().add("error", error).build().toString());
+        });
     }
 
     /**
@@ -152,19 +197,70 @@ public abstract class BaseServlet extends HttpServlet {
      * @param content the JSON response to send
      */
     private static void sendResponse(final HttpServletRequest request, final HttpServletResponse response, final String content) {
-        allowCrossOrigin(request, response);
-        response.setContentType("application/json");
-        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
-        try (final PrintWriter out = response.getWriter()) {
-            out.println(content);
-        } catch (final IOException e) {
-            LOG.log(Level.SEVERE, "IOException thrown when sending json response", e);
+        respond(() -> {
+            allowCrossOrigin(request, response);
+            response.setContentType("application/json");
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            try (final PrintWriter out = response.getWriter()) {
+                out.println(content);
+            } catch (final IOException e) {
+                LOG.log(Level.SEVERE, "IOException thrown when sending json response", e);
+            }
+        });
+    }
+
+    /**
+     * Write the response to the current thread's request. Uploads handled on
+     * the upload queue respond at most once, and not at all once they have
+     * timed out, as the container has then already responded and may have
+     * reused the request and response. Their request is completed as soon as
+     * the response has been written.
+     *
+     * @param write writes the response
+     */
+    private static void respond(final Runnable write) {
+        final Upload upload = CURRENT_UPLOAD.get();
+        if (upload == null) {
+            write.run();
+        } else {
+            upload.respond(write);
         }
     }
 
+    /**
+     * Check whether the current thread may create the conversion for its
+     * request. Uploads handled on the upload queue may not once they have
+     * timed out, as the client has already been told they failed. Otherwise
+     * the upload can no longer fail from here on, and if it times out before
+     * it responds, the client is sent the uuid of the conversion instead.
+     *
+     * @param uuid the uuid of the conversion about to be created
+     * @return true if the conversion may be created, false if it must not be
+     */
+    private static boolean mayCreate(final String uuid) {
+        final Upload upload = CURRENT_UPLOAD.get();
+        return upload == null || upload.commit(uuid);
+    }
+
     /**
      * Get request to the servlet. See API docs in respective end servlets for
      * more information.
+     * <p>
+     * Clients that accept text/event-stream are sent the status as
+     * Server-Sent Events each time it changes, until the conversion finishes.
+     * <p>
+     * Passing more than one uuid, either as repeated uuid parameters or as a
+     * comma separated list, returns the status of each of them in one
+     * response.
+     * <p>
+     * Every status response carries the version of the status in the
+     * X-Status-Version header. Clients that pass it back as the since
+     * parameter are held until the status changes, or for at most the number
+     * of milliseconds given by the wait parameter, before being sent it.
+     * <p>
+     * Status responses also carry an ETag derived from the version, and a
+     * request whose If-None-Match matches the current ETag is answered with
+     * 304 Not Modified without reading the status.
      *
      * @param request the request from the client
      * @param response the response to send once this method exits
@@ -177,6 +273,77 @@ public abstract class BaseServlet extends HttpServlet {
             return;
         }
 
+        final String[] uuidParams = request.getParameterValues("uuid");
+        if (uuidParams.length > 1 || uuidStr.indexOf(',') != -1) {
+            doGetStatuses(request, response, uuidParams);
+            return;
+        }
+
+        // The version is read before the status, so the status sent is never older than the version sent with it
+        final long version;
+        try {
+            version = DBHandler.getInstance().getVersion(uuidStr);
+        } catch (final SQLException e) {
+            LOG.log(Level.SEVERE, "Database error", e);
+            doError(request, response, "Database failure", 500);
+            return;
+        }
+
+        if (version == -1) {
+            doError(request, response, "Unknown uuid: " + uuidStr, 404);
+            return;
+        }
+
+        final StatusStream statusStream = (StatusStream) getServletContext().getAttribute("statusStream");
+        final String accept = request.getHeader("Accept");
+        if (statusStream != null && request.isAsyncSupported() && accept != null && accept.contains("text/event-stream")) {
+            // Push the status as it changes rather than have the client poll for it
+            allowCrossOrigin(request, response);
+            response.setContentType("text/event-stream");
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            response.setHeader("Cache-Control", "no-cache");
+            statusStream.subscribe(uuidStr, request.startAsync());
+            return;
+        }
+
+        final StatusWaiters statusWaiters = (StatusWaiters) getServletContext().getAttribute("statusWaiters");
+        final String since = request.getParameter("since");
+        if (statusWaiters != null && since != null && request.isAsyncSupported()
+                && request.getDispatcherType() != DispatcherType.ASYNC) {
+            // Hold the request until the status changes from the version the client already has
+            final String waitStr = request.getParameter("wait");
+            final long sinceVersion;
+            final long wait;
+            try {
+                sinceVersion = Long.parseLong(since);
+                wait = waitStr != null ? Long.parseLong(waitStr) : statusWaiters.getMaxWait();
+            } catch (final NumberFormatException e) {
+                doError(request, response, "Invalid since or wait value", 400);
+                return;
+            }
+
+            if (sinceVersion == version && wait > 0) {
+                statusWaiters.park(uuidStr, sinceVersion, wait, request.startAsync());
+                return;
+            }
+        }
+
+        // The tag records whether the status was finished, so an unchanged status can be answered without reading it
+        final String runningTag = "\"" + version + "\"";
+        final String finishedTag = "\"" + version + "-finished\"";
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (final String tag : ifNoneMatch.split(",")) {
+                final String matchTag = tag.trim().startsWith("W/") ? tag.trim().substring(2) : tag.trim();
+                if (runningTag.equals(matchTag) || finishedTag.equals(matchTag)) {
+                    allowCrossOrigin(request, response);
+                    setStatusCacheHeaders(response, version, finishedTag.equals(matchTag));
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+            }
+        }
+
         final Map<String, String> status;
         try {
             status = DBHandler.getInstance().getStatus(uuidStr);
@@ -191,12 +358,198 @@ public abstract class BaseServlet extends HttpServlet {
             return;
         }
 
+        setStatusCacheHeaders(response, version, FINISHED_STATES.contains(status.get("state")));
+
         final JsonObjectBuilder json = Json.createObjectBuilder();
         status.forEach(json::add);
 
         sendResponse(request, response, json.build().toString());
     }
 
+    /**
+     * Set the version, ETag and caching headers of a status response. A
+     * finished status will not change again, but it stops being valid once
+     * the conversion expires, which may be soon after it is sent. It is
+     * cached for a short time and then revalidated with its ETag, which is
+     * cheap while the conversion exists. The status of a conversion that is
+     * still running may only be cached briefly.
+     *
+     * @param response the response to send
+     * @param version the version of the status
+     * @param finished true if the conversion has finished, false otherwise
+     */
+    private static void setStatusCacheHeaders(final HttpServletResponse response, final long version, final boolean finished) {
+        response.setHeader("X-Status-Version", String.valueOf(version));
+        if (finished) {
+            response.setHeader("ETag", "\"" + version + "-finished\"");
+            response.setHeader("Cache-Control", "private, max-age=" + FINISHED_STATUS_MAX_AGE);
+        } else {
+            response.setHeader("ETag", "\"" + version + "\"");
+            response.setHeader("Cache-Control", "private, max-age=" + RUNNING_STATUS_MAX_AGE);
+        }
+    }
+
+    /**
+     * Respond with the status of many conversions at once, as a JSON object
+     * keyed by uuid. Conversions that do not exist are given an error instead
+     * of a status.
+     *
+     * @param request the request from the client
+     * @param response the response to send
+     * @param uuidParams the values of the uuid parameter, each of which may be a comma separated list
+     */
+    private void doGetStatuses(final HttpServletRequest request, final HttpServletResponse response, final String[] uuidParams) {
+        final Set<String> uuids = new LinkedHashSet<>();
+        for (final String uuidParam : uuidParams) {
+            for (final String uuid : uuidParam.split(",")) {
+                if (!uuid.trim().isEmpty()) {
+                    uuids.add(uuid.trim());
+                }
+            }
+        }
+
+        final Properties properties = (Properties) getServletContext().getAttribute(BaseServletContextListener.KEY_PROPERTIES);
+        final int maxBatchSize = Integer.parseInt(properties.getProperty(BaseServletContextListener.KEY_PROPERTY_STATUS_MAX_BATCH_SIZE));
+        if (uuids.size() > maxBatchSize) {
+            doError(request, response, "Too many uuids, the maximum is " + maxBatchSize, 400);
+            return;
+        }
+
+        final Map<String, Map<String, String>> statuses;
+        try {
+            statuses = DBHandler.getInstance().getStatuses(uuids);
+        } catch (final SQLException e) {
+            LOG.log(Level.SEVERE, "Database error", e);
+            doError(request, response, "Database failure", 500);
+            return;
+        }
+
+        final JsonObjectBuilder json = Json.createObjectBuilder();
+        for (final String uuid : uuids) {
+            final Map<String, String> status = statuses.get(uuid);
+            final JsonObjectBuilder statusJson = Json.createObjectBuilder();
+            if (status != null) {
+                status.forEach(statusJson::add);
+            } else {
+                statusJson.add("error", "Unknown uuid: " + uuid);
+            }
+            json.add(uuid, statusJson);
+        }
+
+        sendResponse(request, response, json.build().toString());
+    }
+
+    /**
+     * Delete request to the servlet, which cancels the conversion with the
+     * given uuid. A conversion that is waiting to be downloaded or converted
+     * is removed from its queue, a running conversion is interrupted along
+     * with any process it started, and the input and output files of the
+     * conversion are deleted.
+     *
+     * @param request the request from the client
+     * @param response the response to send once this method exits
+     */
+    @Override
+    protected void doDelete(final HttpServletRequest request, final HttpServletResponse response) {
+        final String uuidStr = request.getParameter("uuid");
+        if (uuidStr == null) {
+            doError(request, response, "No uuid provided", 404);
+            return;
+        }
+
+        final String state;
+        try {
+            state = DBHandler.getInstance().getState(uuidStr);
+        } catch (final SQLException e) {
+            LOG.log(Level.SEVERE, "Database error", e);
+            doError(request, response, "Database failure", 500);
+            return;
+        }
+
+        if (state == null) {
+            doError(request, response, "Unknown uuid: " + uuidStr, 404);
+            return;
+        }
+
+        if (!DBHandler.getInstance().cancel(uuidStr)) {
+            doError(request, response, "Conversion has already finished", 409);
+            return;
+        }
+
+        cancelConversion(uuidStr, getContextURL(request));
+
+        final JsonObjectBuilder json = Json.createObjectBuilder();
+        json.add("uuid", uuidStr);
+        json.add("state", "cancelled");
+        sendResponse(request, response, json.build().toString());
+    }
+
+    /**
+     * Stop a conversion that has been marked as cancelled, wherever it is,
+     * and delete its files.
+     *
+     * @param uuid the uuid of the cancelled conversion
+     * @param contextUrl the context url of the servlet
+     */
+    private void cancelConversion(final String uuid, final String contextUrl) {
+        final ConversionScheduler scheduler = (ConversionScheduler) getServletContext().getAttribute("convertQueue");
+        final ConversionIndex conversionIndex = (ConversionIndex) getServletContext().getAttribute("conversionIndex");
+
+        final Future<?> download = downloads.remove(uuid);
+        final ConversionTask queued;
+        final ConversionTask running;
+        if (download != null) {
+            download.cancel(true);
+            final ExecutorService downloadQueue = (ExecutorService) getServletContext().getAttribute("downloadQueue");
+            if (downloadQueue instanceof ThreadPoolExecutor) {
+                // Free the place in the queue rather than waiting for the cancelled download to reach the front
+                ((ThreadPoolExecutor) downloadQueue).remove((Runnable) download);
+            }
+            handleCallback(uuid);
+            DBHandler.getInstance().setAlive(uuid, false);
+        } else if ((queued = scheduler.remove(uuid)) != null) {
+            handleCallback(uuid);
+            DBHandler.getInstance().setAlive(uuid, false);
+            if (conversionIndex != null) {
+                completeAttachedConversions(uuid, conversionIndex.cancelInFlight(uuid), contextUrl,
+                        queued.getPriority(), queued.getTenant());
+            }
+        } else if ((running = scheduler.abandon(uuid)) != null) {
+            ProcessUtils.killProcesses(uuid, ProcessUtils.Result.ERROR);
+            running.interrupt();
+            // Clean up now rather than when the conversion returns, which it may never do
+            running.finish();
+        } else if (conversionIndex != null && conversionIndex.cancelAttached(uuid)) {
+            handleCallback(uuid);
+            DBHandler.getInstance().setAlive(uuid, false);
+        }
+
+        final File[] inputs = new File(getInputPath()).listFiles((dir, name) -> name.startsWith(uuid));
+        final File[] outputs = new File(getOutputPath()).listFiles((dir, name) -> name.startsWith(uuid));
+        for (final File[] files : new File[][] {inputs, outputs}) {
+            if (files != null) {
+                for (final File file : files) {
+                    FileHelper.deleteFolder(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether a conversion has been cancelled.
+     *
+     * @param uuid the uuid of the conversion
+     * @return true if the conversion has been cancelled, false otherwise
+     */
+    private static boolean isCancelled(final String uuid) {
+        try {
+            return "cancelled".equals(DBHandler.getInstance().getState(uuid));
+        } catch (final SQLException e) {
+            LOG.log(Level.SEVERE, "Database error", e);
+            return false;
+        }
+    }
+
     /**
      * Writes to response object with the communication methods that this server
      * supports.
@@ -238,10 +591,28 @@ public abstract class BaseServlet extends HttpServlet {
         if (headers == null) {
             response.addHeader("Access-Control-Allow-Headers", "Origin, X-Requested-With, Content-Type, Access-Control-Allow-Origin, authorization");
         }
+        final String exposeHeaders = response.getHeader("Access-Control-Expose-Headers");
+        if (exposeHeaders == null) {
+            response.addHeader("Access-Control-Expose-Headers", "X-Status-Version, ETag");
+        }
     }
 
     /**
      * A post request to the server.
+     * <p>
+     * Uploads are handled on the container thread unless an upload queue has
+     * been configured with uploadThreadCount. If it has, and the servlet
+     * supports asynchronous processing, the request is handed to the upload
+     * queue so that reading the request body, writing the input file and
+     * initialising the conversion do not hold a container thread. The upload
+     * queue is bounded, so requests are turned away with 429 when it is full.
+     * If uploadTimeout is set, uploads that have not finished reading the
+     * request body within it are abandoned without creating a conversion.
+     * <p>
+     * The request body is still read with blocking reads, as the request
+     * parameters and parts are parsed by the container, so at most
+     * uploadThreadCount uploads are read at once and the rest wait in the
+     * upload queue.
      *
      * @param request the request from the client
      * @param response the response to send once this method exits
@@ -249,8 +620,129 @@ public abstract class BaseServlet extends HttpServlet {
      */
     @Override
     protected void doPost(final HttpServletRequest request, final HttpServletResponse response) {
+        // Turn the request away before its body is read if there is no room to convert it
+        if (rejectIfSaturated(request, response, "convertQueue")) {
+            return;
+        }
+
+        final ExecutorService uploadQueue = (ExecutorService) getServletContext().getAttribute("uploadQueue");
+        if (uploadQueue == null || !request.isAsyncSupported()) {
+            handlePost(request, response);
+            return;
+        }
+
+        if (rejectIfSaturated(request, response, "uploadQueue")) {
+            return;
+        }
+
+        final Properties properties = (Properties) getServletContext().getAttribute(BaseServletContextListener.KEY_PROPERTIES);
+        final AsyncContext asyncContext = request.startAsync();
+        // The default timeout of 0 gives uploads no deadline, as when they are read on the container thread
+        asyncContext.setTimeout(Long.parseLong(properties.getProperty(BaseServletContextListener.KEY_PROPERTY_UPLOAD_TIMEOUT)));
+
+        // Either the upload or its timeout responds and completes the request, whichever comes first
+        final Upload upload = new Upload(asyncContext);
+        final Runnable task = () -> {
+            if (!upload.start()) {
+                return;
+            }
+            CURRENT_UPLOAD.set(upload);
+            try {
+                handlePost(request, response);
+            } catch (final RuntimeException e) {
+                LOG.log(Level.SEVERE, "Unexpected error while handling an upload", e);
+            } finally {
+                CURRENT_UPLOAD.remove();
+                upload.finish();
+            }
+        };
+
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(final AsyncEvent event) {
+                switch (upload.timeOut()) {
+                    case RESPONDED:
+                        return;
+                    case COMMITTED:
+                        // The conversion is being created, so the client can follow it as normal
+                        sendResponse(request, response, Json.createObjectBuilder().add("uuid", upload.getUuid()).build().toString());
+                        break;
+                    default:
+                        if (uploadQueue instanceof ThreadPoolExecutor && ((ThreadPoolExecutor) uploadQueue).remove(task)) {
+                            // The upload never started, so the client can safely try again later
+                            response.setHeader("Retry-After", String.valueOf(getRetryAfter(uploadQueue)));
+                            doError(request, response, "Service unavailable", 503);
+                        } else {
+                            response.setStatus(HttpServletResponse.SC_REQUEST_TIMEOUT);
+                        }
+                        break;
+                }
+                asyncContext.complete();
+            }
+
+            @Override
+            public void onComplete(final AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(final AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(final AsyncEvent event) {
+            }
+        });
+
+        try {
+            uploadQueue.execute(task);
+        } catch (final RejectedExecutionException e) {
+            response.setHeader("Retry-After", String.valueOf(getRetryAfter(uploadQueue)));
+            doError(request, response, "Server busy", 429);
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * Respond with 429 Too Many Requests if the named queue is full, including
+     * a Retry-After header estimated from how quickly the queue is draining.
+     *
+     * @param request the request from the client
+     * @param response the response to send
+     * @param queueName the name of the servlet context attribute holding the queue
+     * @return true if the request was rejected, false if there is room in the queue
+     */
+    private boolean rejectIfSaturated(final HttpServletRequest request, final HttpServletResponse response,
+                                      final String queueName) {
+        final Object queue = getServletContext().getAttribute(queueName);
+        if (queue instanceof AdmissionControl && ((AdmissionControl) queue).isSaturated()) {
+            respond(() -> {
+                response.setHeader("Retry-After", String.valueOf(((AdmissionControl) queue).getRetryAfter()));
+                doError(request, response, "Server busy", 429);
+            });
+            return true;
+        }
+        return false;
+    }
+
+    private static long getRetryAfter(final ExecutorService queue) {
+        return queue instanceof AdmissionControl ? ((AdmissionControl) queue).getRetryAfter() : 60;
+    }
+
+    /**
+     * Handle a post request, creating the conversion and responding with its
+     * uuid or an error.
+     *
+     * @param request the request from the client
+     * @param response the response to send once this method exits
+     */
+    private void handlePost(final HttpServletRequest request, final HttpServletResponse response) {
         DBHandler.getInstance().cleanOldEntries(individualTTL);
 
+        final ConversionIndex conversionIndex = (ConversionIndex) getServletContext().getAttribute("conversionIndex");
+        if (conversionIndex != null) {
+            conversionIndex.cleanOldEntries(individualTTL);
+        }
+
         final String inputType = request.getParameter("input");
         if (inputType == null) {
             doError(request, response, "Missing input type", 400);
@@ -343,17 +835,36 @@ public abstract class BaseServlet extends HttpServlet {
 
         customData.put("originalFileName", originalFileName);
 
-        final File inputFile;
-        try {
-            final InputStream fileContent = filePart.getInputStream();
-            final byte[] fileBytes = new byte[(int) filePart.getSize()];
-            fileContent.read(fileBytes);
-            fileContent.close();
-            inputFile = outputFile(uuid + originalFileName.substring(originalFileName.lastIndexOf('.')), fileBytes);
+        // Hash the file as it is written so identical resubmissions can reuse an earlier conversion
+        final ConversionIndex conversionIndex = (ConversionIndex) getServletContext().getAttribute("conversionIndex");
+        final MessageDigest digest = conversionIndex != null ? ConversionIndex.createDigest() : null;
+
+        final File inputFile = new File(getInputPath(), uuid + originalFileName.substring(originalFileName.lastIndexOf('.')));
+        try (InputStream fileContent = filePart.getInputStream()) {
+            FileHelper.writeToFile(fileContent, inputFile, fileSizeLimit, digest);
+        } catch (final InterruptedIOException e) {
+            LOG.log(Level.FINE, "Stopped reading an upload that timed out", e);
+            return false;
         } catch (final IOException e) {
             LOG.log(Level.SEVERE, "IOException when reading an uploaded file", e);
             doError(request, response, "Internal error", 500); // Failed to save file to disk
             return false;
+        } catch (final SizeLimitExceededException e) {
+            doError(request, response, "File size limit exceeded", 400);
+            return false;
+        } finally {
+            try {
+                // Remove the container's temporary copy of the part now that it has been written to the input path
+                filePart.delete();
+            } catch (final IOException e) {
+                LOG.log(Level.WARNING, "IOException when deleting the temporary file part", e);
+            }
+        }
+
+        if (!mayCreate(uuid)) {
+            // The client has already been told the upload timed out, so it will never see this conversion
+            inputFile.delete();
+            return false;
         }
 
         final String[] rawParam = params.get("callbackUrl");
@@ -361,7 +872,19 @@ public abstract class BaseServlet extends HttpServlet {
 
         DBHandler.getInstance().initializeConversion(uuid, callbackUrl, customData, settings);
 
-        addToQueue(uuid, inputFile, getContextURL(request));
+        final String conversionKey = digest != null ? ConversionIndex.createKey(digest.digest(), settings) : null;
+        if (conversionKey != null) {
+            final String completedUuid = conversionIndex.findCompleted(conversionKey);
+            if (completedUuid != null && conversionIndex.reuse(completedUuid, uuid, getOutputStatusKeys())) {
+                inputFile.delete();
+                handleCallback(uuid);
+                DBHandler.getInstance().setAlive(uuid, false);
+                return true;
+            }
+        }
+
+        addToQueue(uuid, inputFile, getContextURL(request), conversionKey, getPriority(request),
+                getTenant(request, customData));
 
         return true;
     }
@@ -407,47 +930,84 @@ public abstract class BaseServlet extends HttpServlet {
 
         customData.put("originalFileName", filename);
 
+        // The file size limit is enforced by the download itself, from the response headers and while streaming
         final long fileSizeLimit = getFileSizeLimit(request);
-        if (fileSizeLimit > 0) {
-            long fileSize;
-            try {
-                fileSize = DownloadHelper.getFileSizeFromUrl(url);
-            } catch (IOException e) {
-                LOG.log(Level.SEVERE, "IOException when finding the FileSize of a remote file", e);
-                doError(request, response, "Internal error", 500);
-                return false;
-            }
-
-            if (fileSize > fileSizeLimit) {
-                doError(request, response, "File size limit exceeded", 400);
-                return false;
-            }
-        }
 
         // To allow use in lambda function.
         final String finalFilename = filename;
         final String contextUrl = getContextURL(request);
+        final int priority = getPriority(request);
+        final String tenant = getTenant(request, customData);
 
         final ExecutorService downloadQueue = (ExecutorService) getServletContext().getAttribute("downloadQueue");
+        if (rejectIfSaturated(request, response, "downloadQueue")) {
+            return false;
+        }
+
+        if (!mayCreate(uuid)) {
+            // The client has already been told the upload timed out, so it will never see this conversion
+            return false;
+        }
 
         final String[] rawParam = params.get("callbackUrl");
         final String callbackUrl = (rawParam != null && rawParam.length > 0) ? rawParam[0] : "";
 
         DBHandler.getInstance().initializeConversion(uuid, callbackUrl, customData, settings);
 
-        downloadQueue.submit(() -> {
-            File inputFile = null;
+        // The download is registered before it is queued, so it can be found and cancelled as soon as it can run
+        final FutureTask<?>[] download = new FutureTask<?>[1];
+        download[0] = new FutureTask<>(() -> {
+            File inputFile = new File(getInputPath(), uuid + finalFilename.substring(finalFilename.lastIndexOf('.')));
             try {
-                final byte[] fileBytes = DownloadHelper.getFileFromUrl(url, NUM_DOWNLOAD_RETRIES, fileSizeLimit);
-                inputFile = outputFile(uuid + finalFilename.substring(finalFilename.lastIndexOf('.')), fileBytes);
+                DownloadHelper.getFileFromUrl(url, inputFile, fileSizeLimit);
             } catch (IOException e) {
+                inputFile = null;
                 DBHandler.getInstance().setError(uuid, 1200, "Could not get file from URL");
             } catch (SizeLimitExceededException e) {
+                inputFile = null;
                 DBHandler.getInstance().setError(uuid, 1210, "File exceeds file size limit");
+            } catch (final RuntimeException e) {
+                // Would otherwise be kept by the FutureTask and leave the conversion queued forever
+                LOG.log(Level.SEVERE, "Unexpected error while downloading " + url, e);
+                inputFile = null;
+                DBHandler.getInstance().setError(uuid, 1200, "Could not get file from URL");
             }
 
-            addToQueue(uuid, inputFile, contextUrl);
-        });
+            // Whoever removes the download owns the callback, so a cancellation finds it here or once it is queued
+            if (!downloads.remove(uuid, download[0])) {
+                // The conversion was cancelled while it was downloading, and the cancellation has sent its callback
+                if (inputFile != null) {
+                    inputFile.delete();
+                }
+                return;
+            }
+
+            if (isCancelled(uuid)) {
+                // The conversion was cancelled after its download was removed, but before it could be queued
+                if (inputFile != null) {
+                    inputFile.delete();
+                }
+                handleCallback(uuid);
+                DBHandler.getInstance().setAlive(uuid, false);
+                return;
+            }
+
+            addToQueue(uuid, inputFile, contextUrl, null, priority, tenant);
+        }, null);
+        downloads.put(uuid, download[0]);
+
+        try {
+            downloadQueue.execute(download[0]);
+        } catch (final RejectedExecutionException e) {
+            downloads.remove(uuid, download[0]);
+            DBHandler.getInstance().setError(uuid, 1300, "Server busy");
+            DBHandler.getInstance().setAlive(uuid, false);
+            respond(() -> {
+                response.setHeader("Retry-After", String.valueOf(getRetryAfter(downloadQueue)));
+                doError(request, response, "Server busy", 429);
+            });
+            return false;
+        }
 
         return true;
     }
@@ -458,19 +1018,191 @@ public abstract class BaseServlet extends HttpServlet {
      * @param uuid the uuid of this conversion
      * @param inputFile the input file to convert
      * @param contextUrl the context url of the servlet
+     * @param conversionKey the key of the input file and settings in the conversion index, or null if not indexed
+     * @param priority the priority of the conversion in the queue
+     * @param tenant the tenant the conversion belongs to, or null if it has none
      */
-    private void addToQueue(final String uuid, final File inputFile, final String contextUrl) {
+    private void addToQueue(final String uuid, final File inputFile, final String contextUrl, final String conversionKey,
+                            final int priority, final String tenant) {
 
         final ExecutorService convertQueue = (ExecutorService) getServletContext().getAttribute("convertQueue");
+        final ConversionIndex conversionIndex = conversionKey != null
+                ? (ConversionIndex) getServletContext().getAttribute("conversionIndex") : null;
 
-        convertQueue.submit(() -> {
+        // Identical conversions already in flight take this one along with them
+        if (conversionIndex != null && conversionIndex.attach(conversionKey, uuid, inputFile)) {
+            return;
+        }
+
+        // The scheduler reserves this much of the memory budget when the conversion starts
+        final MemoryBudget memoryBudget = (MemoryBudget) getServletContext().getAttribute("memoryBudget");
+        final long memoryEstimate = memoryBudget != null && inputFile != null ? memoryBudget.estimate(inputFile.length()) : 0;
+
+        final ConversionTask[] task = new ConversionTask[1];
+        task[0] = new ConversionTask(uuid, priority, tenant, estimateConversionCost(inputFile), memoryEstimate, () -> {
+            ProcessUtils.startConversion(uuid);
             try {
+                if (isCancelled(uuid)) {
+                    // The conversion was cancelled as it was being started
+                    return;
+                }
+                if (conversionIndex != null) {
+                    conversionIndex.markStarted(conversionKey);
+                }
                 convert(uuid, inputFile, contextUrl);
+                if (conversionIndex != null) {
+                    registerCompletedConversion(uuid, conversionKey);
+                }
             } finally {
-                handleCallback(uuid);
-                DBHandler.getInstance().setAlive(uuid, false);
+                ProcessUtils.endConversion(uuid);
+                // Does nothing if the watchdog has already timed the conversion out
+                task[0].finish();
+            }
+        });
+        // Runs once, when the conversion returns or when the watchdog gives up on it, whichever is first
+        task[0].setOnFinish(() -> {
+            if (memoryBudget != null) {
+                memoryBudget.release(memoryEstimate);
+            }
+            handleCallback(uuid);
+            DBHandler.getInstance().setAlive(uuid, false);
+            if (conversionIndex != null) {
+                completeAttachedConversions(uuid, conversionIndex.detach(conversionKey), contextUrl, priority, tenant);
             }
         });
+
+        try {
+            convertQueue.execute(task[0]);
+        } catch (final RejectedExecutionException e) {
+            LOG.log(Level.WARNING, "Conversion queue is full, rejecting conversion " + uuid);
+            DBHandler.getInstance().setError(uuid, 1300, "Server busy");
+            handleCallback(uuid);
+            DBHandler.getInstance().setAlive(uuid, false);
+            if (conversionIndex != null) {
+                completeAttachedConversions(uuid, conversionIndex.detach(conversionKey), contextUrl, priority, tenant);
+            }
+        }
+    }
+
+    /**
+     * Give the conversions that were attached to a finished conversion its
+     * result. Any that cannot share the result are queued to be converted
+     * themselves.
+     *
+     * @param uuid the uuid of the finished conversion
+     * @param followers the conversions that were attached to it
+     * @param contextUrl the context url of the servlet
+     * @param priority the priority of the finished conversion
+     * @param tenant the tenant of the finished conversion
+     */
+    private void completeAttachedConversions(final String uuid, final List<ConversionIndex.Follower> followers,
+                                             final String contextUrl, final int priority, final String tenant) {
+        final ConversionIndex conversionIndex = (ConversionIndex) getServletContext().getAttribute("conversionIndex");
+        for (final ConversionIndex.Follower follower : followers) {
+            if (conversionIndex.shareResult(uuid, follower.getUuid(), getOutputStatusKeys())) {
+                follower.getInputFile().delete();
+                handleCallback(follower.getUuid());
+                DBHandler.getInstance().setAlive(follower.getUuid(), false);
+            } else {
+                addToQueue(follower.getUuid(), follower.getInputFile(), contextUrl, null, priority, tenant);
+            }
+        }
+    }
+
+    /**
+     * Record a successful conversion in the conversion index so that later
+     * submissions of the same file and settings can reuse its output.
+     *
+     * @param uuid the uuid of the conversion
+     * @param conversionKey the key of the input file and settings in the conversion index
+     */
+    private void registerCompletedConversion(final String uuid, final String conversionKey) {
+        final ConversionIndex conversionIndex = (ConversionIndex) getServletContext().getAttribute("conversionIndex");
+        try {
+            final Map<String, String> status = DBHandler.getInstance().getStatus(uuid);
+            if (conversionIndex != null && status != null && "processed".equals(status.get("state"))) {
+                conversionIndex.registerCompleted(conversionKey, uuid);
+            }
+        } catch (final SQLException e) {
+            LOG.log(Level.SEVERE, "Database error while indexing conversion", e);
+        }
+    }
+
+    /**
+     * Get the priority of the conversion in the request, as set in the
+     * com.idrsolutions.microservice.priority request attribute by
+     * validateRequest. The attribute may be "high", "normal" or "low", or an
+     * integer where higher values are converted sooner.
+     *
+     * @param request the request for this conversion
+     * @return the priority of the conversion
+     */
+    private static int getPriority(final HttpServletRequest request) {
+        final Object priority = request.getAttribute("com.idrsolutions.microservice.priority");
+        if (priority == null) {
+            return ConversionTask.DEFAULT_PRIORITY;
+        }
+        if (priority instanceof Number) {
+            return ((Number) priority).intValue();
+        }
+
+        switch (priority.toString()) {
+            case "high":
+                return ConversionTask.DEFAULT_PRIORITY + 1;
+            case "normal":
+                return ConversionTask.DEFAULT_PRIORITY;
+            case "low":
+                return ConversionTask.DEFAULT_PRIORITY - 1;
+            default:
+                try {
+                    return Integer.parseInt(priority.toString());
+                } catch (final NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Ignoring unrecognised conversion priority " + priority);
+                    return ConversionTask.DEFAULT_PRIORITY;
+                }
+        }
+    }
+
+    /**
+     * Get the tenant the conversion in the request belongs to, used to share
+     * the conversion queue fairly between tenants. This is the
+     * com.idrsolutions.microservice.tenant request attribute if validateRequest
+     * set it, otherwise the "tenant" custom data value.
+     *
+     * @param request the request for this conversion
+     * @param customData the custom data of this conversion
+     * @return the tenant of the conversion, or null if it has none
+     */
+    private static String getTenant(final HttpServletRequest request, final Map<String, String> customData) {
+        final Object tenant = request.getAttribute("com.idrsolutions.microservice.tenant");
+        return tenant != null ? tenant.toString() : customData.get("tenant");
+    }
+
+    /**
+     * Get the custom status values that describe the output of a conversion,
+     * rather than the request it was made for. When the output is reused for
+     * an identical conversion, only these values are copied to it. The
+     * defaults are the downloadUrl and previewUrl values; implementations that
+     * set other values describing their output should override this.
+     *
+     * @return the keys of the status values to copy with reused output
+     */
+    protected Set<String> getOutputStatusKeys() {
+        return OUTPUT_STATUS_KEYS;
+    }
+
+    /**
+     * Estimate how expensive converting the input file will be, used to run
+     * cheaper conversions first when the conversion queue is scheduled
+     * shortest job first. The estimate is the size of the input file;
+     * implementations that can cheaply tell more, such as a page count, may
+     * override this.
+     *
+     * @param inputFile the file to convert, or null if it could not be retrieved
+     * @return the estimated cost of the conversion, only compared with other estimates
+     */
+    protected long estimateConversionCost(final File inputFile) {
+        return inputFile != null ? inputFile.length() : 0;
     }
 
     /**
@@ -499,25 +1231,6 @@ public abstract class BaseServlet extends HttpServlet {
      */
     protected abstract void convert(final String uuid, final File inputFile, final String contextUrl);
 
-    /**
-     * Write the given file bytes to the output directory under filename.
-     *
-     * @param filename the filename to output to
-     * @param fileBytes the bytes to be written.
-     * @return the created file
-     * @throws IOException on file not being writable
-     */
-    private File outputFile(final String filename, final byte[] fileBytes) throws IOException {
-        final File inputFile = new File(getInputPath(), filename);
-
-        try (FileOutputStream output = new FileOutputStream(inputFile)) {
-            output.write(fileBytes);
-            output.flush();
-        }
-
-        return inputFile;
-    }
-
     /**
      * Get the filename of the file contained in this request part.
      *
@@ -713,4 +1426,137 @@ public abstract class BaseServlet extends HttpServlet {
         }
         return out;
     }
-}
\ No newline at end of file
+
+    /**
+     * A post request handled on the upload queue. Either the upload responds,
+     * or the request times out and the container responds, but never both.
+     * An upload times out without a conversion until it commits to creating
+     * one, after which a timeout responds with the uuid of the conversion.
+     * Neither side waits for the other, other than while a response is being
+     * written.
+     */
+    private static final class Upload {
+
+        /**
+         * What a timeout should do with the request.
+         */
+        enum Timeout {
+            /**
+             * Respond that the upload failed, as it will not create a conversion.
+             */
+            ABANDONED,
+            /**
+             * Respond with the uuid of the conversion the upload is creating.
+             */
+            COMMITTED,
+            /**
+             * Nothing, as the upload has responded and completed the request.
+             */
+            RESPONDED
+        }
+
+        private final AsyncContext asyncContext;
+        private Thread worker;
+        private String uuid;
+        private boolean responding;
+        private boolean responded;
+        private boolean timedOut;
+
+        Upload(final AsyncContext asyncContext) {
+            this.asyncContext = asyncContext;
+        }
+
+        /**
+         * Called by the upload queue thread before handling the upload.
+         *
+         * @return true if the upload should be handled, false if it has already timed out
+         */
+        synchronized boolean start() {
+            if (timedOut) {
+                return false;
+            }
+            worker = Thread.currentThread();
+            return true;
+        }
+
+        /**
+         * Called by the upload queue thread before it creates the conversion.
+         *
+         * @param uuid the uuid of the conversion
+         * @return true if the conversion may be created, false if the upload has timed out
+         */
+        synchronized boolean commit(final String uuid) {
+            if (timedOut) {
+                return false;
+            }
+            this.uuid = uuid;
+            // Reading the request body is over, so a timeout must not interrupt the rest
+            worker = null;
+            return true;
+        }
+
+        synchronized String getUuid() {
+            return uuid;
+        }
+
+        /**
+         * Write the response and complete the request, unless the upload has
+         * already responded or timed out. Responses written from within the
+         * response are part of it.
+         *
+         * @param write writes the response
+         */
+        synchronized void respond(final Runnable write) {
+            if (responding) {
+                write.run();
+                return;
+            }
+            if (timedOut || responded) {
+                return;
+            }
+            responding = true;
+            try {
+                write.run();
+            } finally {
+                responding = false;
+                responded = true;
+                asyncContext.complete();
+            }
+        }
+
+        /**
+         * Called by the upload queue thread once it has finished with the
+         * upload, completing the request if nothing has responded.
+         */
+        synchronized void finish() {
+            worker = null;
+            // Do not leave an interrupt from a timeout behind for the next upload on this thread
+            Thread.interrupted();
+            if (!timedOut && !responded) {
+                responded = true;
+                asyncContext.complete();
+            }
+        }
+
+        /**
+         * Called when the request times out. Unless the upload has responded,
+         * it can no longer respond, and if it has not committed to a
+         * conversion it is interrupted to stop it reading the request body.
+         *
+         * @return what the caller should do with the timed out request
+         */
+        synchronized Timeout timeOut() {
+            if (responded) {
+                return Timeout.RESPONDED;
+            }
+            timedOut = true;
+            if (uuid != null) {
+                return Timeout.COMMITTED;
+            }
+            if (worker != null) {
+                worker.interrupt();
+            }
+            return Timeout.ABANDONED;
+        }
+    }
+}
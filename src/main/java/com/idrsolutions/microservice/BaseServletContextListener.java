@@ -19,17 +19,48 @@
 package com.idrsolutions.microservice;
 
 import com.idrsolutions.microservice.db.DBHandler;
+import com.idrsolutions.microservice.scheduling.AdaptiveConcurrencyPolicy;
+import com.idrsolutions.microservice.scheduling.ConcurrencyPolicy;
+import com.idrsolutions.microservice.scheduling.ConversionScheduler;
+import com.idrsolutions.microservice.scheduling.ConversionWatchdog;
+import com.idrsolutions.microservice.scheduling.FairSharePolicy;
+import com.idrsolutions.microservice.scheduling.FifoPolicy;
+import com.idrsolutions.microservice.scheduling.FixedConcurrencyPolicy;
+import com.idrsolutions.microservice.scheduling.MemoryBudget;
+import com.idrsolutions.microservice.scheduling.PriorityPolicy;
+import com.idrsolutions.microservice.scheduling.SchedulingPolicy;
+import com.idrsolutions.microservice.scheduling.ShortestJobFirstPolicy;
 import com.idrsolutions.microservice.storage.Storage;
+import com.idrsolutions.microservice.utils.BoundedExecutor;
+import com.idrsolutions.microservice.utils.ConversionIndex;
+import com.idrsolutions.microservice.utils.DownloadCache;
+import com.idrsolutions.microservice.utils.DownloadHelper;
 import com.idrsolutions.microservice.utils.FileDeletionService;
+import com.idrsolutions.microservice.utils.ProcessUtils;
 import com.idrsolutions.microservice.utils.ProgressTracker;
+import com.idrsolutions.microservice.utils.PropertiesFileWatcher;
+import com.idrsolutions.microservice.utils.ResizableExecutor;
+import com.idrsolutions.microservice.utils.SemaphoreExecutor;
+import com.idrsolutions.microservice.utils.SemaphoreScheduledExecutor;
+import com.idrsolutions.microservice.utils.StatusSocket;
+import com.idrsolutions.microservice.utils.StatusSocketHub;
+import com.idrsolutions.microservice.utils.StatusStream;
+import com.idrsolutions.microservice.utils.StatusWaiters;
+import com.idrsolutions.microservice.utils.VirtualThreads;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
+import javax.websocket.DeploymentException;
+import javax.websocket.server.ServerContainer;
+import javax.websocket.server.ServerEndpointConfig;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
 import java.rmi.AlreadyBoundException;
 import java.rmi.NotBoundException;
@@ -38,10 +69,13 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -54,14 +88,50 @@ public abstract class BaseServletContextListener implements ServletContextListen
     public static final String KEY_PROPERTY_CONVERSION_COUNT = "conversionThreadCount";
     public static final String KEY_PROPERTY_DOWNLOAD_COUNT = "downloadThreadCount";
     public static final String KEY_PROPERTY_CALLBACK_COUNT = "callbackThreadCount";
+    public static final String KEY_PROPERTY_UPLOAD_COUNT = "uploadThreadCount";
+    public static final String KEY_PROPERTY_UPLOAD_QUEUE_SIZE = "uploadQueueSize";
+    public static final String KEY_PROPERTY_UPLOAD_TIMEOUT = "uploadTimeout";
+    public static final String KEY_PROPERTY_CONVERSION_QUEUE_SIZE = "conversionQueueSize";
+    public static final String KEY_PROPERTY_DOWNLOAD_QUEUE_SIZE = "downloadQueueSize";
+    public static final String KEY_PROPERTY_VIRTUAL_THREADS = "virtualThreads";
+    public static final String KEY_PROPERTY_CONVERSION_SCHEDULING = "conversionScheduling";
+    public static final String KEY_PROPERTY_CONVERSION_AGING_INTERVAL = "conversionScheduling.agingInterval";
+    public static final String KEY_PROPERTY_CONVERSION_TENANT_WEIGHTS = "conversionScheduling.tenantWeights";
+    public static final String KEY_PROPERTY_CONVERSION_TENANT_MAX_CONCURRENT = "conversionScheduling.tenantMaxConcurrent";
+    public static final String KEY_PROPERTY_CONVERSION_MAX_WAIT = "conversionScheduling.maxWait";
+    public static final String KEY_PROPERTY_CONVERSION_CONCURRENCY = "conversionConcurrency";
     public static final String KEY_PROPERTY_INPUT_PATH = "inputPath";
     public static final String KEY_PROPERTY_OUTPUT_PATH = "outputPath";
     public static final String KEY_PROPERTY_INDIVIDUAL_TTL = "individualTTL";
     public static final String KEY_PROPERTY_FILE_DELETION_SERVICE = "fileDeletionService";
     public static final String KEY_PROPERTY_FILE_DELETION_SERVICE_FREQUENCY = "fileDeletionService.frequency";
+    public static final String KEY_PROPERTY_CONFIG_WATCHER = "configWatcher";
+    public static final String KEY_PROPERTY_CONFIG_WATCHER_FREQUENCY = "configWatcher.frequency";
     public static final String KEY_PROPERTY_MAX_CONVERSION_DURATION = "maxConversionDuration";
     public static final String KEY_PROPERTY_REMOTE_TRACKING_PORT = "remoteTracker.port";
     public static final String KEY_PROPERTY_CONVERSION_MEMORY = "conversionMemoryLimit";
+    public static final String KEY_PROPERTY_CONVERSION_MEMORY_BUDGET = "conversionMemoryBudget";
+    public static final String KEY_PROPERTY_CONVERSION_MEMORY_INPUT_MULTIPLIER = "conversionMemoryBudget.inputMultiplier";
+    public static final String KEY_PROPERTY_DOWNLOAD_CONNECT_TIMEOUT = "download.connectTimeout";
+    public static final String KEY_PROPERTY_DOWNLOAD_READ_TIMEOUT = "download.readTimeout";
+    public static final String KEY_PROPERTY_DOWNLOAD_MAX_CONNECTIONS_PER_HOST = "download.maxConnectionsPerHost";
+    public static final String KEY_PROPERTY_DOWNLOAD_SEGMENT_COUNT = "download.segmentThreadCount";
+    public static final String KEY_PROPERTY_DOWNLOAD_SEGMENTS_PER_FILE = "download.segmentsPerFile";
+    public static final String KEY_PROPERTY_DOWNLOAD_RANGED_THRESHOLD = "download.rangedThreshold";
+    public static final String KEY_PROPERTY_DOWNLOAD_RETRIES = "download.retries";
+    public static final String KEY_PROPERTY_DOWNLOAD_RETRY_DELAY = "download.retryDelay";
+    public static final String KEY_PROPERTY_DOWNLOAD_MAX_RETRY_DELAY = "download.maxRetryDelay";
+    public static final String KEY_PROPERTY_CONVERSION_REUSE = "conversionReuse";
+    public static final String KEY_PROPERTY_DOWNLOAD_CACHE_PATH = "download.cache.path";
+    public static final String KEY_PROPERTY_DOWNLOAD_CACHE_MAX_SIZE = "download.cache.maxSize";
+    public static final String KEY_PROPERTY_STATUS_MAX_WAIT = "status.maxWait";
+    public static final String KEY_PROPERTY_STATUS_MAX_BATCH_SIZE = "status.maxBatchSize";
+    public static final String KEY_PROPERTY_STATUS_SOCKET = "statusSocket";
+    public static final String KEY_PROPERTY_STATUS_SOCKET_PATH = "statusSocket.path";
+    public static final String KEY_PROPERTY_STATUS_SOCKET_MAX_SUBSCRIPTIONS = "statusSocket.maxSubscriptions";
+
+    private static final String DOWNLOAD_CACHE_MBEAN_NAME = "com.idrsolutions.microservice:type=DownloadCache";
+    private static final String CONVERSION_SCHEDULER_MBEAN_NAME = "com.idrsolutions.microservice:type=ConversionScheduler";
 
     private static final String KEY_PROPERTY_DATABASE_JNDI_NAME = "databaseJNDIName";
 
@@ -73,23 +143,8 @@ public abstract class BaseServletContextListener implements ServletContextListen
 
     @Override
     public void contextInitialized(final ServletContextEvent servletContextEvent) {
-        final Properties propertiesFile = new Properties();
         final ServletContext servletContext = servletContextEvent.getServletContext();
-        final File externalFile = new File(getConfigPath() + getConfigName());
-
-        try (InputStream intPropertiesFile = BaseServletContextListener.class.getResourceAsStream("/" + getConfigName())) {
-            propertiesFile.load(intPropertiesFile);
-        } catch (IOException e) {
-            LOG.log(Level.SEVERE, "IOException thrown when reading default properties file", e);
-        }
-
-        if (externalFile.exists()) {
-            try (InputStream extPropertiesFile = new FileInputStream(externalFile.getAbsolutePath())) {
-                propertiesFile.load(extPropertiesFile);
-            } catch (IOException e) {
-                LOG.log(Level.SEVERE, "IOException thrown when reading external properties file", e);
-            }
-        }
+        final Properties propertiesFile = loadProperties();
 
         validateConfigFileValues(propertiesFile);
         final String storageProvider = propertiesFile.getProperty("storageprovider");
@@ -113,14 +168,53 @@ public abstract class BaseServletContextListener implements ServletContextListen
 
         servletContext.setAttribute(KEY_PROPERTIES, propertiesFile);
 
-        final ExecutorService convertQueue = Executors.newFixedThreadPool(Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_CONVERSION_COUNT)));
-        final ExecutorService downloadQueue = Executors.newFixedThreadPool(Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_COUNT)));
-        final ScheduledExecutorService callbackQueue = Executors.newScheduledThreadPool(Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_CALLBACK_COUNT)));
+        final long memoryBudgetSize = Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_CONVERSION_MEMORY_BUDGET));
+        final MemoryBudget memoryBudget = memoryBudgetSize > 0 ? new MemoryBudget(memoryBudgetSize * 1024 * 1024,
+                Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_CONVERSION_MEMORY)) * 1024 * 1024,
+                Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_CONVERSION_MEMORY_INPUT_MULTIPLIER)),
+                Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_CONVERSION_MAX_WAIT))) : null;
+        servletContext.setAttribute("memoryBudget", memoryBudget);
+
+        final ExecutorService convertQueue = new ConversionScheduler(createSchedulingPolicy(propertiesFile),
+                createConcurrencyPolicy(propertiesFile), memoryBudget, Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_CONVERSION_COUNT)),
+                Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_CONVERSION_QUEUE_SIZE)));
+        final ExecutorService downloadQueue;
+        final ScheduledExecutorService callbackQueue;
+        if (Boolean.parseBoolean(propertiesFile.getProperty(KEY_PROPERTY_VIRTUAL_THREADS))) {
+            // Downloads and callbacks spend their time waiting on the network, so each gets a virtual thread and
+            // the thread counts limit how many run at once
+            downloadQueue = new SemaphoreExecutor(VirtualThreads.createFactory("download-"),
+                    Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_COUNT)),
+                    Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_QUEUE_SIZE)));
+            callbackQueue = new SemaphoreScheduledExecutor(VirtualThreads.createFactory("callback-"),
+                    Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_CALLBACK_COUNT)));
+        } else {
+            downloadQueue = new BoundedExecutor(Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_COUNT)),
+                    Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_QUEUE_SIZE)));
+            callbackQueue = Executors.newScheduledThreadPool(Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_CALLBACK_COUNT)));
+        }
 
         servletContext.setAttribute("convertQueue", convertQueue);
         servletContext.setAttribute("downloadQueue", downloadQueue);
         servletContext.setAttribute("callbackQueue", callbackQueue);
 
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(convertQueue, new ObjectName(CONVERSION_SCHEDULER_MBEAN_NAME));
+        } catch (final JMException e) {
+            LOG.log(Level.WARNING, "Unable to publish conversion queue metrics over JMX", e);
+        }
+
+        // Without an upload thread count, uploads are read on the container's own threads
+        final int uploadThreadCount = Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_UPLOAD_COUNT));
+        if (uploadThreadCount > 0) {
+            final ExecutorService uploadQueue = new BoundedExecutor(uploadThreadCount,
+                    Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_UPLOAD_QUEUE_SIZE)));
+            servletContext.setAttribute("uploadQueue", uploadQueue);
+        }
+
+        final ExecutorService downloadSegmentQueue = Executors.newFixedThreadPool(Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_SEGMENT_COUNT)));
+        servletContext.setAttribute("downloadSegmentQueue", downloadSegmentQueue);
+
         BaseServlet.setInputPath(propertiesFile.getProperty(KEY_PROPERTY_INPUT_PATH));
         BaseServlet.setOutputPath(propertiesFile.getProperty(KEY_PROPERTY_OUTPUT_PATH));
 
@@ -136,16 +230,100 @@ public abstract class BaseServletContextListener implements ServletContextListen
 
         BaseServlet.setIndividualTTL(Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_INDIVIDUAL_TTL)));
 
+        DownloadHelper.configure(
+                Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_CONNECT_TIMEOUT)),
+                Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_READ_TIMEOUT)),
+                Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_MAX_CONNECTIONS_PER_HOST))
+        );
+        DownloadHelper.configureRangedDownloads(
+                downloadSegmentQueue,
+                Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_RANGED_THRESHOLD)),
+                Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_SEGMENTS_PER_FILE))
+        );
+        DownloadHelper.configureRetries(
+                Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_RETRIES)),
+                Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_RETRY_DELAY)),
+                Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_MAX_RETRY_DELAY))
+        );
+
+        final String downloadCachePath = propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_CACHE_PATH);
+        if (downloadCachePath != null && !downloadCachePath.isEmpty()) {
+            final DownloadCache downloadCache = new DownloadCache(new File(downloadCachePath),
+                    Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_DOWNLOAD_CACHE_MAX_SIZE)));
+            DownloadHelper.setCache(downloadCache);
+            servletContext.setAttribute("downloadCache", downloadCache);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(downloadCache, new ObjectName(DOWNLOAD_CACHE_MBEAN_NAME));
+            } catch (final JMException e) {
+                LOG.log(Level.WARNING, "Unable to publish download cache metrics over JMX", e);
+            }
+        }
+
+        if (Boolean.parseBoolean(propertiesFile.getProperty(KEY_PROPERTY_CONVERSION_REUSE))) {
+            if (storageProvider != null) {
+                LOG.log(Level.WARNING, "Properties value for \"conversionReuse\" is ignored because output is uploaded to a storage provider.");
+            } else {
+                servletContext.setAttribute("conversionIndex", new ConversionIndex(BaseServlet.getOutputPath()));
+            }
+        }
+
         DBHandler.setDatabaseJNDIName(propertiesFile.getProperty(KEY_PROPERTY_DATABASE_JNDI_NAME));
         DBHandler.initialise();
+        servletContext.setAttribute("statusStream", new StatusStream(callbackQueue));
+        servletContext.setAttribute("statusWaiters", new StatusWaiters(Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_STATUS_MAX_WAIT))));
+
+        if (Boolean.parseBoolean(propertiesFile.getProperty(KEY_PROPERTY_STATUS_SOCKET))) {
+            final ServerContainer serverContainer = (ServerContainer) servletContext.getAttribute(ServerContainer.class.getName());
+            if (serverContainer == null) {
+                LOG.log(Level.WARNING, "Properties value for \"statusSocket\" is ignored because the server does not support WebSockets.");
+            } else {
+                final StatusSocketHub statusSocketHub = new StatusSocketHub(callbackQueue,
+                        Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_STATUS_SOCKET_MAX_SUBSCRIPTIONS)));
+                final ServerEndpointConfig endpointConfig = ServerEndpointConfig.Builder.create(StatusSocket.class,
+                        propertiesFile.getProperty(KEY_PROPERTY_STATUS_SOCKET_PATH)).build();
+                endpointConfig.getUserProperties().put(StatusSocket.HUB_PROPERTY, statusSocketHub);
+                try {
+                    serverContainer.addEndpoint(endpointConfig);
+                    servletContext.setAttribute("statusSocketHub", statusSocketHub);
+                } catch (final DeploymentException e) {
+                    LOG.log(Level.SEVERE, "Unable to register the status socket", e);
+                    statusSocketHub.close();
+                }
+            }
+        }
+
+        final long maxConversionDuration = Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_MAX_CONVERSION_DURATION));
+        if (maxConversionDuration != Long.MAX_VALUE) {
+            servletContext.setAttribute("conversionWatchdog", new ConversionWatchdog((ConversionScheduler) convertQueue,
+                    maxConversionDuration, task -> {
+                        if (task.getUuid() != null) {
+                            ProcessUtils.killProcesses(task.getUuid(), ProcessUtils.Result.TIMEOUT);
+                            DBHandler.getInstance().setError(task.getUuid(), ProcessUtils.Result.TIMEOUT.getCode(),
+                                    "Conversion exceeded the maximum duration of " + maxConversionDuration + "ms");
+                        }
+                        // Clean up now rather than when the conversion returns, which it may never do
+                        task.finish();
+                    }));
+        }
 
         if (Boolean.parseBoolean(propertiesFile.getProperty(KEY_PROPERTY_FILE_DELETION_SERVICE))) {
+            // Reused output keeps the earlier conversion's modification time, so the index records when it was reused
+            final ConversionIndex conversionIndex = (ConversionIndex) servletContext.getAttribute("conversionIndex");
             servletContext.setAttribute(KEY_PROPERTY_FILE_DELETION_SERVICE, new FileDeletionService(
                     new String[]{
                             propertiesFile.getProperty(KEY_PROPERTY_INPUT_PATH), propertiesFile.getProperty(KEY_PROPERTY_OUTPUT_PATH)
                     },
                     Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_INDIVIDUAL_TTL)),
-                    Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_FILE_DELETION_SERVICE_FREQUENCY))
+                    Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_FILE_DELETION_SERVICE_FREQUENCY)),
+                    conversionIndex != null ? conversionIndex::getReusedTime : file -> 0
+            ));
+        }
+
+        if (Boolean.parseBoolean(propertiesFile.getProperty(KEY_PROPERTY_CONFIG_WATCHER))) {
+            servletContext.setAttribute(KEY_PROPERTY_CONFIG_WATCHER, new PropertiesFileWatcher(
+                    new File(getConfigPath() + getConfigName()),
+                    Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_CONFIG_WATCHER_FREQUENCY)),
+                    () -> reloadThreadCounts(servletContext)
             ));
         }
 
@@ -164,9 +342,27 @@ public abstract class BaseServletContextListener implements ServletContextListen
     public void contextDestroyed(final ServletContextEvent servletContextEvent) {
         final ServletContext servletContext = servletContextEvent.getServletContext();
 
+        final StatusStream statusStream = (StatusStream) servletContext.getAttribute("statusStream");
+        if (statusStream != null) {
+            statusStream.close();
+        }
+        final StatusWaiters statusWaiters = (StatusWaiters) servletContext.getAttribute("statusWaiters");
+        if (statusWaiters != null) {
+            statusWaiters.close();
+        }
+        final StatusSocketHub statusSocketHub = (StatusSocketHub) servletContext.getAttribute("statusSocketHub");
+        if (statusSocketHub != null) {
+            statusSocketHub.close();
+        }
+
         ((ExecutorService) servletContext.getAttribute("convertQueue")).shutdownNow();
         ((ExecutorService) servletContext.getAttribute("downloadQueue")).shutdownNow();
         ((ExecutorService) servletContext.getAttribute("callbackQueue")).shutdownNow();
+        final ExecutorService uploadQueue = (ExecutorService) servletContext.getAttribute("uploadQueue");
+        if (uploadQueue != null) {
+            uploadQueue.shutdownNow();
+        }
+        ((ExecutorService) servletContext.getAttribute("downloadSegmentQueue")).shutdownNow();
 
         try {
             if (!((ExecutorService) servletContext.getAttribute("convertQueue")).awaitTermination(1, TimeUnit.MINUTES)) {
@@ -189,6 +385,59 @@ public abstract class BaseServletContextListener implements ServletContextListen
         } catch (final InterruptedException e) {
             LOG.log(Level.SEVERE, "callbackQueue shutdown timed out", e);
         }
+        try {
+            if (uploadQueue != null && !uploadQueue.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.log(Level.SEVERE, "uploadQueue did not terminate within timeout");
+            }
+        } catch (final InterruptedException e) {
+            LOG.log(Level.SEVERE, "uploadQueue shutdown timed out", e);
+        }
+        try {
+            if (!((ExecutorService) servletContext.getAttribute("downloadSegmentQueue")).awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.log(Level.SEVERE, "downloadSegmentQueue did not terminate within timeout");
+            }
+        } catch (final InterruptedException e) {
+            LOG.log(Level.SEVERE, "downloadSegmentQueue shutdown timed out", e);
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(CONVERSION_SCHEDULER_MBEAN_NAME));
+        } catch (final JMException e) {
+            LOG.log(Level.WARNING, "Unable to remove conversion queue metrics from JMX", e);
+        }
+
+        if (servletContext.getAttribute("downloadCache") != null) {
+            DownloadHelper.setCache(null);
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(DOWNLOAD_CACHE_MBEAN_NAME));
+            } catch (final JMException e) {
+                LOG.log(Level.WARNING, "Unable to remove download cache metrics from JMX", e);
+            }
+        }
+
+        final ConversionWatchdog conversionWatchdog = (ConversionWatchdog) servletContext.getAttribute("conversionWatchdog");
+        if (conversionWatchdog != null) {
+            conversionWatchdog.shutdownNow();
+            try {
+                if (!conversionWatchdog.awaitTermination(1, TimeUnit.MINUTES)) {
+                    LOG.log(Level.SEVERE, "ConversionWatchdog did not terminate within timeout");
+                }
+            } catch (final InterruptedException e) {
+                LOG.log(Level.SEVERE, "ConversionWatchdog shutdown timed out", e);
+            }
+        }
+
+        final PropertiesFileWatcher configWatcher = (PropertiesFileWatcher) servletContext.getAttribute(KEY_PROPERTY_CONFIG_WATCHER);
+        if (configWatcher != null) {
+            configWatcher.shutdownNow();
+            try {
+                if (!configWatcher.awaitTermination(1, TimeUnit.MINUTES)) {
+                    LOG.log(Level.SEVERE, "PropertiesFileWatcher did not terminate within timeout");
+                }
+            } catch (final InterruptedException e) {
+                LOG.log(Level.SEVERE, "PropertiesFileWatcher shutdown timed out", e);
+            }
+        }
 
         final FileDeletionService fileDeletionService = (FileDeletionService) servletContext.getAttribute(KEY_PROPERTY_FILE_DELETION_SERVICE);
         if (fileDeletionService != null) {
@@ -220,18 +469,168 @@ public abstract class BaseServletContextListener implements ServletContextListen
         }
     }
 
+    /**
+     * Read the default properties file bundled with the microservice,
+     * overridden by the external properties file if there is one.
+     *
+     * @return the unvalidated properties
+     */
+    private Properties loadProperties() {
+        final Properties propertiesFile = new Properties();
+        final File externalFile = new File(getConfigPath() + getConfigName());
+
+        try (InputStream intPropertiesFile = BaseServletContextListener.class.getResourceAsStream("/" + getConfigName())) {
+            propertiesFile.load(intPropertiesFile);
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "IOException thrown when reading default properties file", e);
+        }
+
+        if (externalFile.exists()) {
+            try (InputStream extPropertiesFile = new FileInputStream(externalFile.getAbsolutePath())) {
+                propertiesFile.load(extPropertiesFile);
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "IOException thrown when reading external properties file", e);
+            }
+        }
+
+        return propertiesFile;
+    }
+
+    /**
+     * Reread the properties files and resize the conversion, download,
+     * callback and upload queues to any new thread counts. Queued work is kept. Other
+     * properties only take effect after a restart.
+     *
+     * @param servletContext the servlet context holding the queues
+     */
+    private void reloadThreadCounts(final ServletContext servletContext) {
+        final Properties reloaded = loadProperties();
+        validateConfigFileValues(reloaded);
+
+        final Properties properties = (Properties) servletContext.getAttribute(KEY_PROPERTIES);
+        resizeQueue(servletContext.getAttribute("convertQueue"), KEY_PROPERTY_CONVERSION_COUNT, properties, reloaded);
+        resizeQueue(servletContext.getAttribute("downloadQueue"), KEY_PROPERTY_DOWNLOAD_COUNT, properties, reloaded);
+        resizeQueue(servletContext.getAttribute("callbackQueue"), KEY_PROPERTY_CALLBACK_COUNT, properties, reloaded);
+        resizeQueue(servletContext.getAttribute("uploadQueue"), KEY_PROPERTY_UPLOAD_COUNT, properties, reloaded);
+    }
+
+    private static void resizeQueue(final Object queue, final String key, final Properties properties,
+                                    final Properties reloaded) {
+        final String threadCount = reloaded.getProperty(key);
+        final String previousThreadCount = properties.getProperty(key);
+        if (threadCount.equals(previousThreadCount)) {
+            return;
+        }
+
+        if (Integer.parseInt(threadCount) == 0) {
+            // Turning the upload queue on or off changes how requests are handled
+            LOG.log(Level.WARNING, String.format("Unable to change \"%s\" to 0 without a restart.", key));
+            return;
+        } else if (queue instanceof ResizableExecutor) {
+            ((ResizableExecutor) queue).setThreadCount(Integer.parseInt(threadCount));
+        } else if (queue instanceof ScheduledThreadPoolExecutor) {
+            ((ScheduledThreadPoolExecutor) queue).setCorePoolSize(Integer.parseInt(threadCount));
+        } else {
+            LOG.log(Level.WARNING, String.format("Unable to change \"%s\" without a restart.", key));
+            return;
+        }
+
+        properties.setProperty(key, threadCount);
+        LOG.log(Level.INFO, String.format("Changed \"%s\" from %s to %s.", key, previousThreadCount, threadCount));
+    }
+
+    /**
+     * Create the policy the conversion queue uses to choose which waiting
+     * conversion runs next.
+     *
+     * @param properties the validated properties
+     * @return the scheduling policy named by the conversionScheduling property
+     */
+    protected SchedulingPolicy createSchedulingPolicy(final Properties properties) {
+        final String scheduling = properties.getProperty(KEY_PROPERTY_CONVERSION_SCHEDULING);
+        if ("fifo".equals(scheduling)) {
+            return new FifoPolicy();
+        }
+        if ("sjf".equals(scheduling)) {
+            return new ShortestJobFirstPolicy(Long.parseLong(properties.getProperty(KEY_PROPERTY_CONVERSION_MAX_WAIT)));
+        }
+
+        final SchedulingPolicy priorityPolicy = new PriorityPolicy(Long.parseLong(properties.getProperty(KEY_PROPERTY_CONVERSION_AGING_INTERVAL)));
+        if ("fair".equals(scheduling)) {
+            final Map<String, Integer> weights = new HashMap<>();
+            final String tenantWeights = properties.getProperty(KEY_PROPERTY_CONVERSION_TENANT_WEIGHTS);
+            if (!tenantWeights.isEmpty()) {
+                for (final String tenantWeight : tenantWeights.split(",")) {
+                    final int separator = tenantWeight.lastIndexOf(':');
+                    weights.put(tenantWeight.substring(0, separator).trim(), Integer.parseInt(tenantWeight.substring(separator + 1).trim()));
+                }
+            }
+            return new FairSharePolicy(priorityPolicy, weights,
+                    Integer.parseInt(properties.getProperty(KEY_PROPERTY_CONVERSION_TENANT_MAX_CONCURRENT)));
+        }
+        return priorityPolicy;
+    }
+
+    /**
+     * Create the policy that decides how many conversions run at the same
+     * time, up to the conversion thread count.
+     *
+     * @param properties the validated properties
+     * @return the concurrency policy named by the conversionConcurrency property
+     */
+    protected ConcurrencyPolicy createConcurrencyPolicy(final Properties properties) {
+        if ("adaptive".equals(properties.getProperty(KEY_PROPERTY_CONVERSION_CONCURRENCY))) {
+            return new AdaptiveConcurrencyPolicy(Math.min(Runtime.getRuntime().availableProcessors(),
+                    Integer.parseInt(properties.getProperty(KEY_PROPERTY_CONVERSION_COUNT))));
+        }
+        return new FixedConcurrencyPolicy();
+    }
+
     protected void validateConfigFileValues(final Properties propertiesFile) {
         validateConversionThreadCount(propertiesFile);
         validateDownloadThreadCount(propertiesFile);
         validateCallbackThreadCount(propertiesFile);
+        validateUploadThreadCount(propertiesFile);
+        validateUploadQueueSize(propertiesFile);
+        validateUploadTimeout(propertiesFile);
+        validateConversionQueueSize(propertiesFile);
+        validateDownloadQueueSize(propertiesFile);
+        validateVirtualThreads(propertiesFile);
+        validateConversionScheduling(propertiesFile);
+        validateConversionAgingInterval(propertiesFile);
+        validateConversionTenantWeights(propertiesFile);
+        validateConversionTenantMaxConcurrent(propertiesFile);
+        validateConversionMaxWait(propertiesFile);
+        validateConversionConcurrency(propertiesFile);
         validateInputPath(propertiesFile);
         validateOutputPath(propertiesFile);
         validateIndividualTTL(propertiesFile);
         validateFileDeletionService(propertiesFile);
         validateFileDeletionServiceFrequency(propertiesFile);
+        validateConfigWatcher(propertiesFile);
+        validateConfigWatcherFrequency(propertiesFile);
+        validateConversionReuse(propertiesFile);
         validateMaxConversionDuration(propertiesFile);
         validateConversionMemoryLimit(propertiesFile);
+        validateConversionMemoryBudget(propertiesFile);
+        validateConversionMemoryInputMultiplier(propertiesFile);
         validateRemoteTrackerPort(propertiesFile);
+        validateDownloadConnectTimeout(propertiesFile);
+        validateDownloadReadTimeout(propertiesFile);
+        validateDownloadMaxConnectionsPerHost(propertiesFile);
+        validateDownloadSegmentThreadCount(propertiesFile);
+        validateDownloadSegmentsPerFile(propertiesFile);
+        validateDownloadRangedThreshold(propertiesFile);
+        validateDownloadRetries(propertiesFile);
+        validateDownloadRetryDelay(propertiesFile);
+        validateDownloadMaxRetryDelay(propertiesFile);
+        validateDownloadCachePath(propertiesFile);
+        validateDownloadCacheMaxSize(propertiesFile);
+        validateStatusMaxWait(propertiesFile);
+        validateStatusMaxBatchSize(propertiesFile);
+        validateStatusSocket(propertiesFile);
+        validateStatusSocketPath(propertiesFile);
+        validateStatusSocketMaxSubscriptions(propertiesFile);
     }
 
     private static void validateConversionThreadCount(final Properties properties) {
@@ -267,6 +666,111 @@ public abstract class BaseServletContextListener implements ServletContextListen
         }
     }
 
+    private static void validateUploadThreadCount(final Properties properties) {
+        validateNonNegativeNumber(properties, KEY_PROPERTY_UPLOAD_COUNT, "0");
+    }
+
+    private static void validateUploadQueueSize(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_UPLOAD_QUEUE_SIZE, "100");
+    }
+
+    private static void validateUploadTimeout(final Properties properties) {
+        validateNonNegativeNumber(properties, KEY_PROPERTY_UPLOAD_TIMEOUT, "0");
+    }
+
+    private static void validateConversionQueueSize(final Properties properties) {
+        validateQueueSize(properties, KEY_PROPERTY_CONVERSION_QUEUE_SIZE);
+    }
+
+    private static void validateDownloadQueueSize(final Properties properties) {
+        validateQueueSize(properties, KEY_PROPERTY_DOWNLOAD_QUEUE_SIZE);
+    }
+
+    /**
+     * Ensure the given queue size property is a positive integer. Queues
+     * without a valid size are unbounded.
+     *
+     * @param properties the properties to validate
+     * @param key the key of the queue size property
+     */
+    private static void validateQueueSize(final Properties properties, final String key) {
+        final String queueSize = properties.getProperty(key);
+        if (queueSize == null || queueSize.isEmpty()) {
+            properties.setProperty(key, String.valueOf(Integer.MAX_VALUE));
+        } else if (!queueSize.matches("\\d{1,9}") || Integer.parseInt(queueSize) == 0) {
+            properties.setProperty(key, String.valueOf(Integer.MAX_VALUE));
+            final String message = String.format("Properties value for \"%s\" was set to \"%s\" but should be a " +
+                    "positive integer. The queue will be unbounded.", key, queueSize);
+            LOG.log(Level.WARNING, message);
+        }
+    }
+
+    private static void validateVirtualThreads(final Properties properties) {
+        final String virtualThreads = properties.getProperty(KEY_PROPERTY_VIRTUAL_THREADS);
+        if (virtualThreads == null || virtualThreads.isEmpty() || !Boolean.parseBoolean(virtualThreads)) {
+            properties.setProperty(KEY_PROPERTY_VIRTUAL_THREADS, "false");
+            if (virtualThreads != null && !virtualThreads.isEmpty() && !"false".equalsIgnoreCase(virtualThreads)) {
+                final String message = String.format("Properties value for \"virtualThreads\" was set to \"%s\" " +
+                        "but should be a boolean. Using a value of false.", virtualThreads);
+                LOG.log(Level.WARNING, message);
+            }
+        } else if (VirtualThreads.createFactory("") == null) {
+            properties.setProperty(KEY_PROPERTY_VIRTUAL_THREADS, "false");
+            LOG.log(Level.WARNING, "Properties value for \"virtualThreads\" was set to \"true\" but virtual threads " +
+                    "are not supported by this Java version. Using a value of false.");
+        }
+    }
+
+    private static void validateConversionScheduling(final Properties properties) {
+        final String scheduling = properties.getProperty(KEY_PROPERTY_CONVERSION_SCHEDULING);
+        if (scheduling == null || scheduling.isEmpty()) {
+            properties.setProperty(KEY_PROPERTY_CONVERSION_SCHEDULING, "priority");
+        } else if (!"fifo".equals(scheduling) && !"priority".equals(scheduling) && !"fair".equals(scheduling)
+                && !"sjf".equals(scheduling)) {
+            properties.setProperty(KEY_PROPERTY_CONVERSION_SCHEDULING, "priority");
+            final String message = String.format("Properties value for \"conversionScheduling\" was set to \"%s\" " +
+                    "but should be fifo, priority, fair or sjf. Using a value of priority.", scheduling);
+            LOG.log(Level.WARNING, message);
+        }
+    }
+
+    private static void validateConversionAgingInterval(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_CONVERSION_AGING_INTERVAL, "60000");
+    }
+
+    private static void validateConversionConcurrency(final Properties properties) {
+        final String concurrency = properties.getProperty(KEY_PROPERTY_CONVERSION_CONCURRENCY);
+        if (concurrency == null || concurrency.isEmpty()) {
+            properties.setProperty(KEY_PROPERTY_CONVERSION_CONCURRENCY, "fixed");
+        } else if (!"fixed".equals(concurrency) && !"adaptive".equals(concurrency)) {
+            properties.setProperty(KEY_PROPERTY_CONVERSION_CONCURRENCY, "fixed");
+            final String message = String.format("Properties value for \"conversionConcurrency\" was set to \"%s\" " +
+                    "but should be fixed or adaptive. Using a value of fixed.", concurrency);
+            LOG.log(Level.WARNING, message);
+        }
+    }
+
+    private static void validateConversionMaxWait(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_CONVERSION_MAX_WAIT, "300000");
+    }
+
+    private static void validateConversionTenantWeights(final Properties properties) {
+        final String tenantWeights = properties.getProperty(KEY_PROPERTY_CONVERSION_TENANT_WEIGHTS);
+        if (tenantWeights == null || tenantWeights.trim().isEmpty()) {
+            properties.setProperty(KEY_PROPERTY_CONVERSION_TENANT_WEIGHTS, "");
+        } else if (!tenantWeights.matches("\\s*[^,]+:\\s*0*[1-9]\\d{0,8}\\s*(,\\s*[^,]+:\\s*0*[1-9]\\d{0,8}\\s*)*")) {
+            properties.setProperty(KEY_PROPERTY_CONVERSION_TENANT_WEIGHTS, "");
+            final String message = String.format("Properties value for \"conversionScheduling.tenantWeights\" was " +
+                    "set to \"%s\" but should be a comma separated list of tenant:weight pairs with positive integer " +
+                    "weights. Every tenant will have a weight of 1.", tenantWeights);
+            LOG.log(Level.WARNING, message);
+        }
+    }
+
+    private static void validateConversionTenantMaxConcurrent(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_CONVERSION_TENANT_MAX_CONCURRENT, String.valueOf(Integer.MAX_VALUE));
+    }
+
     private void validateInputPath(final Properties properties) {
         final String inputPath = properties.getProperty(KEY_PROPERTY_INPUT_PATH);
         if (inputPath == null || inputPath.isEmpty()) {
@@ -324,6 +828,34 @@ public abstract class BaseServletContextListener implements ServletContextListen
         }
     }
 
+    private static void validateConfigWatcher(final Properties properties) {
+        final String configWatcher = properties.getProperty(KEY_PROPERTY_CONFIG_WATCHER);
+        if (configWatcher == null || configWatcher.isEmpty() || !Boolean.parseBoolean(configWatcher)) {
+            properties.setProperty(KEY_PROPERTY_CONFIG_WATCHER, "false");
+            if (configWatcher != null && !configWatcher.isEmpty() && !"false".equalsIgnoreCase(configWatcher)) {
+                final String message = String.format("Properties value for \"configWatcher\" was set to \"%s\" " +
+                        "but should be a boolean. Using a value of false.", configWatcher);
+                LOG.log(Level.WARNING, message);
+            }
+        }
+    }
+
+    private static void validateConfigWatcherFrequency(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_CONFIG_WATCHER_FREQUENCY, "30");
+    }
+
+    private static void validateConversionReuse(final Properties properties) {
+        final String conversionReuse = properties.getProperty(KEY_PROPERTY_CONVERSION_REUSE);
+        if (conversionReuse == null || conversionReuse.isEmpty() || !Boolean.parseBoolean(conversionReuse)) {
+            properties.setProperty(KEY_PROPERTY_CONVERSION_REUSE, "false");
+            if (conversionReuse != null && !conversionReuse.isEmpty() && !"false".equalsIgnoreCase(conversionReuse)) {
+                final String message = String.format("Properties value for \"conversionReuse\" was set to \"%s\" " +
+                        "but should be a boolean. Using a value of false.", conversionReuse);
+                LOG.log(Level.WARNING, message);
+            }
+        }
+    }
+
     private static void validateMaxConversionDuration(final Properties properties) {
         final String maxDuration = properties.getProperty(KEY_PROPERTY_MAX_CONVERSION_DURATION);
         if (maxDuration == null || maxDuration.isEmpty() || "0".equals(maxDuration)
@@ -352,6 +884,22 @@ public abstract class BaseServletContextListener implements ServletContextListen
         }
     }
 
+    private static void validateConversionMemoryBudget(final Properties properties) {
+        final String memoryBudget = properties.getProperty(KEY_PROPERTY_CONVERSION_MEMORY_BUDGET);
+        if (memoryBudget == null || memoryBudget.isEmpty()) {
+            properties.setProperty(KEY_PROPERTY_CONVERSION_MEMORY_BUDGET, "-1");
+        } else if (!memoryBudget.matches("\\d{1,12}") || memoryBudget.matches("0+")) {
+            properties.setProperty(KEY_PROPERTY_CONVERSION_MEMORY_BUDGET, "-1");
+            final String message = String.format("Properties value for \"conversionMemoryBudget\" was set to " +
+                    "\"%s\" but should be a positive integer. Conversions will not reserve memory.", memoryBudget);
+            LOG.log(Level.WARNING, message);
+        }
+    }
+
+    private static void validateConversionMemoryInputMultiplier(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_CONVERSION_MEMORY_INPUT_MULTIPLIER, "20");
+    }
+
     private static void validateRemoteTrackerPort(final Properties properties) {
         final String remoteTrackingPort = properties.getProperty(KEY_PROPERTY_REMOTE_TRACKING_PORT);
         if (remoteTrackingPort == null || remoteTrackingPort.isEmpty() || !remoteTrackingPort.matches("\\d+")) {
@@ -359,4 +907,160 @@ public abstract class BaseServletContextListener implements ServletContextListen
             LOG.log(Level.WARNING, "Properties value for \"remoteTracker.port\" was not set. Using a value of \"1099\"");
         }
     }
+
+    private static void validateDownloadConnectTimeout(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_DOWNLOAD_CONNECT_TIMEOUT, "10000");
+    }
+
+    private static void validateDownloadReadTimeout(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_DOWNLOAD_READ_TIMEOUT, "60000");
+    }
+
+    private static void validateDownloadMaxConnectionsPerHost(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_DOWNLOAD_MAX_CONNECTIONS_PER_HOST, "8");
+    }
+
+    private static void validateDownloadSegmentThreadCount(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_DOWNLOAD_SEGMENT_COUNT, "10");
+    }
+
+    private static void validateDownloadSegmentsPerFile(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_DOWNLOAD_SEGMENTS_PER_FILE, "4");
+    }
+
+    private static void validateDownloadRangedThreshold(final Properties properties) {
+        validatePositiveLong(properties, KEY_PROPERTY_DOWNLOAD_RANGED_THRESHOLD, "67108864");
+    }
+
+    private static void validateDownloadRetries(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_DOWNLOAD_RETRIES, "2");
+    }
+
+    private static void validateDownloadRetryDelay(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_DOWNLOAD_RETRY_DELAY, "1000");
+    }
+
+    private static void validateDownloadMaxRetryDelay(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_DOWNLOAD_MAX_RETRY_DELAY, "30000");
+    }
+
+    private static void validateDownloadCachePath(final Properties properties) {
+        final String cachePath = properties.getProperty(KEY_PROPERTY_DOWNLOAD_CACHE_PATH);
+        if (cachePath != null && cachePath.startsWith("~")) {
+            properties.setProperty(KEY_PROPERTY_DOWNLOAD_CACHE_PATH, System.getProperty("user.home") + cachePath.substring(1));
+        }
+    }
+
+    private static void validateDownloadCacheMaxSize(final Properties properties) {
+        validatePositiveLong(properties, KEY_PROPERTY_DOWNLOAD_CACHE_MAX_SIZE, "1073741824");
+    }
+
+    private static void validateStatusMaxWait(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_STATUS_MAX_WAIT, "30000");
+    }
+
+    private static void validateStatusMaxBatchSize(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_STATUS_MAX_BATCH_SIZE, "100");
+    }
+
+    private static void validateStatusSocket(final Properties properties) {
+        final String statusSocket = properties.getProperty(KEY_PROPERTY_STATUS_SOCKET);
+        if (statusSocket == null || statusSocket.isEmpty() || !Boolean.parseBoolean(statusSocket)) {
+            properties.setProperty(KEY_PROPERTY_STATUS_SOCKET, "false");
+            if (statusSocket != null && !statusSocket.isEmpty() && !"false".equalsIgnoreCase(statusSocket)) {
+                final String message = String.format("Properties value for \"statusSocket\" was set to \"%s\" " +
+                        "but should be a boolean. Using a value of false.", statusSocket);
+                LOG.log(Level.WARNING, message);
+            }
+        }
+    }
+
+    private static void validateStatusSocketPath(final Properties properties) {
+        final String path = properties.getProperty(KEY_PROPERTY_STATUS_SOCKET_PATH);
+        if (path == null || path.isEmpty()) {
+            properties.setProperty(KEY_PROPERTY_STATUS_SOCKET_PATH, "/status");
+        } else if (!path.startsWith("/")) {
+            properties.setProperty(KEY_PROPERTY_STATUS_SOCKET_PATH, "/status");
+            final String message = String.format("Properties value for \"statusSocket.path\" was set to \"%s\" " +
+                    "but should start with a /. Using a value of /status.", path);
+            LOG.log(Level.WARNING, message);
+        }
+    }
+
+    private static void validateStatusSocketMaxSubscriptions(final Properties properties) {
+        validatePositiveNumber(properties, KEY_PROPERTY_STATUS_SOCKET_MAX_SUBSCRIPTIONS, "1000");
+    }
+
+    /**
+     * Ensure the given property is a positive whole number that fits in an
+     * int, replacing it with the default value (and logging a warning) if it
+     * is not.
+     *
+     * @param properties the properties to validate
+     * @param key the key of the property to validate
+     * @param defaultValue the value to use when the property is missing or invalid
+     */
+    private static void validatePositiveNumber(final Properties properties, final String key, final String defaultValue) {
+        validateNumber(properties, key, defaultValue, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Ensure the given property is a positive whole number that fits in a
+     * long, replacing it with the default value (and logging a warning) if it
+     * is not.
+     *
+     * @param properties the properties to validate
+     * @param key the key of the property to validate
+     * @param defaultValue the value to use when the property is missing or invalid
+     */
+    private static void validatePositiveLong(final Properties properties, final String key, final String defaultValue) {
+        validateNumber(properties, key, defaultValue, 1, Long.MAX_VALUE);
+    }
+
+    /**
+     * Ensure the given property is a whole number that may be 0 and fits in
+     * an int, replacing it with the default value (and logging a warning) if
+     * it is not.
+     *
+     * @param properties the properties to validate
+     * @param key the key of the property to validate
+     * @param defaultValue the value to use when the property is missing or invalid
+     */
+    private static void validateNonNegativeNumber(final Properties properties, final String key, final String defaultValue) {
+        validateNumber(properties, key, defaultValue, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Ensure the given property is a whole number within the given range,
+     * replacing it with the default value (and logging a warning) if it is
+     * not.
+     *
+     * @param properties the properties to validate
+     * @param key the key of the property to validate
+     * @param defaultValue the value to use when the property is missing or invalid
+     * @param min the smallest value allowed
+     * @param max the largest value allowed
+     */
+    private static void validateNumber(final Properties properties, final String key, final String defaultValue,
+                                       final long min, final long max) {
+        final String value = properties.getProperty(key);
+        if (value == null || value.isEmpty()) {
+            properties.setProperty(key, defaultValue);
+            return;
+        }
+
+        long number;
+        try {
+            number = value.matches("\\d+") ? Long.parseLong(value) : -1;
+        } catch (final NumberFormatException e) {
+            // Too large for a long
+            number = -1;
+        }
+        if (number < min || number > max) {
+            properties.setProperty(key, defaultValue);
+            final String message = String.format("Properties value for \"%s\" was set to \"%s\" but should be a " +
+                    "whole number from %d to %d. Using a value of %s.", key, value, min, max, defaultValue);
+            LOG.log(Level.WARNING, message);
+        }
+    }
 }
@@ -21,6 +21,8 @@ package com.idrsolutions.microservice.db;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
 public abstract class DBHandler {
@@ -31,6 +33,8 @@ public abstract class DBHandler {
 
     private static boolean usingMemoryDatabase = true;
 
+    private static final List<StatusListener> STATUS_LISTENERS = new CopyOnWriteArrayList<>();
+
     public static boolean isUsingMemoryDatabase() {
         return usingMemoryDatabase;
     }
@@ -38,7 +42,26 @@ public abstract class DBHandler {
     public static void initialise() {
         final DataSource dataSource = setupDatasource();
         usingMemoryDatabase = dataSource == null;
-        INSTANCE = usingMemoryDatabase ? new MemoryDatabase() : new ExternalDatabase(dataSource);
+        INSTANCE = new NotifyingDatabase(usingMemoryDatabase ? new MemoryDatabase() : new ExternalDatabase(dataSource),
+                STATUS_LISTENERS);
+    }
+
+    /**
+     * Add a listener to be notified whenever the status of a conversion changes.
+     *
+     * @param listener the listener to add
+     */
+    public static void addStatusListener(final StatusListener listener) {
+        STATUS_LISTENERS.add(listener);
+    }
+
+    /**
+     * Remove a listener added with {@link #addStatusListener(StatusListener)}.
+     *
+     * @param listener the listener to remove
+     */
+    public static void removeStatusListener(final StatusListener listener) {
+        STATUS_LISTENERS.remove(listener);
     }
 
     public static Database getInstance() {
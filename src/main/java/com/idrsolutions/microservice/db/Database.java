@@ -19,6 +19,7 @@
 package com.idrsolutions.microservice.db;
 
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.Map;
 
 public interface Database {
@@ -39,16 +40,69 @@ public interface Database {
      */
     void cleanOldEntries(final long TTL);
 
-    void setCustomValue(final String uuid, final String key, final String value);
+    /**
+     * Sets a custom value in the status of the conversion
+     * @param uuid The uuid of the conversion
+     * @param key The key of the custom value
+     * @param value The custom value
+     * @return true if the value was written, false if the conversion does not exist or the write failed
+     */
+    boolean setCustomValue(final String uuid, final String key, final String value);
 
     void setAlive(final String uuid, final boolean alive);
 
-    void setState(final String uuid, final String state);
+    /**
+     * Sets the state of the conversion, unless it has been cancelled
+     * @param uuid The uuid of the conversion
+     * @param state The new state of the conversion
+     * @return true if the state was changed, false if the conversion does not exist or has been cancelled
+     */
+    boolean setState(final String uuid, final String state);
+
+    /**
+     * Sets the conversion into the error state, unless it has been cancelled
+     * @param uuid The uuid of the conversion
+     * @param errorCode The code identifying the error
+     * @param errorMessage The message describing the error
+     * @return true if the error was set, false if the conversion does not exist or has been cancelled
+     */
+    boolean setError(final String uuid, final int errorCode, final String errorMessage);
 
-    void setError(final String uuid, final int errorCode, final String errorMessage);
+    /**
+     * Moves the conversion into the cancelled state if it has not already finished. Once cancelled, later calls to
+     * {@link #setState(String, String)} and {@link #setError(String, int, String)} have no effect, so work that is
+     * still stopping cannot overwrite the cancellation.
+     * @param uuid The uuid of the conversion
+     * @return true if the conversion was cancelled, false if it does not exist or is already processed, in error or cancelled
+     */
+    boolean cancel(final String uuid);
 
     Map<String, String> getStatus(final String uuid) throws SQLException;
 
+    /**
+     * Gets only the state of the conversion, without its error or custom values
+     * @param uuid The uuid of the conversion
+     * @return the state of the conversion, or null if it does not exist
+     * @throws SQLException An sql Exception
+     */
+    String getState(final String uuid) throws SQLException;
+
+    /**
+     * Gets the status of many conversions at once
+     * @param uuids The uuids of the conversions
+     * @return the status of each conversion that exists, keyed by uuid
+     * @throws SQLException An sql Exception
+     */
+    Map<String, Map<String, String>> getStatuses(final Collection<String> uuids) throws SQLException;
+
+    /**
+     * Gets the version of the conversion's status, which increases each time its state, error or custom values change
+     * @param uuid The uuid of the conversion
+     * @return the version of the status, or -1 if the conversion does not exist
+     * @throws SQLException An sql Exception
+     */
+    long getVersion(final String uuid) throws SQLException;
+
     String getCallbackUrl(final String uuid) throws SQLException;
 
     Map<String, String> getSettings(final String uuid) throws SQLException;
@@ -21,10 +21,13 @@ package com.idrsolutions.microservice.db;
 import javax.sql.DataSource;
 import java.net.URLEncoder;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -37,6 +40,12 @@ final class ExternalDatabase implements Database {
 
     private final DataSource dataSource;
 
+    /**
+     * Whether the conversions table has the version column, it may be missing
+     * if the table predates it and could not be migrated
+     */
+    private boolean versioned = true;
+
     ExternalDatabase(final DataSource dataSource) {
         this.dataSource = dataSource;
 
@@ -65,6 +74,7 @@ final class ExternalDatabase implements Database {
                     "state VARCHAR(10), " +
                     "errorCode VARCHAR(5), " +
                     "errorMessage VARCHAR(255), " +
+                    "version BIGINT(20) DEFAULT 0, " +
                     "PRIMARY KEY (uuid)" +
                     ")");
             // Setup many-to-one relations with Cascade Delete to clear them out when the reference is deleted
@@ -90,6 +100,54 @@ final class ExternalDatabase implements Database {
                     "FOREIGN KEY (uuid) REFERENCES conversions(uuid) ON DELETE CASCADE ON UPDATE CASCADE" +
                     ")");
         }
+
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            // Tables created before the status was versioned need the column adding
+            if (!hasColumn(connection, "conversions", "version")) {
+                statement.executeUpdate("ALTER TABLE conversions ADD COLUMN version BIGINT(20) DEFAULT 0");
+            }
+        } catch (final SQLException e) {
+            // Carry on without the column rather than fail every status update that would bump it
+            versioned = false;
+            LOG.log(Level.SEVERE, "Unable to add the version column to the conversions table, "
+                    + "status versions will not be tracked and long polling may miss changes", e);
+        }
+    }
+
+    /**
+     * Get the SQL to bump the status version, for appending to the SET clause
+     * of an update to the conversions table
+     *
+     * @return the SQL to bump the version, or an empty string if the table is not versioned
+     */
+    private String versionIncrement() {
+        return versioned ? ", version = version + 1" : "";
+    }
+
+    /**
+     * Check whether the table has the column, using the database's metadata
+     * so that the check does not depend on the SQL dialect.
+     *
+     * @param connection the connection to the database
+     * @param table the name of the table
+     * @param column the name of the column
+     * @return true if the table has the column
+     * @throws SQLException when the metadata cannot be read
+     */
+    private static boolean hasColumn(final Connection connection, final String table, final String column) throws SQLException {
+        final DatabaseMetaData metaData = connection.getMetaData();
+        // Unquoted identifiers may be stored in a different case to the one they were created with
+        final String storedTable = metaData.storesUpperCaseIdentifiers() ? table.toUpperCase()
+                : metaData.storesLowerCaseIdentifiers() ? table.toLowerCase() : table;
+        try (ResultSet columns = metaData.getColumns(connection.getCatalog(), null, storedTable, null)) {
+            while (columns.next()) {
+                if (column.equalsIgnoreCase(columns.getString("COLUMN_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
@@ -139,15 +197,44 @@ final class ExternalDatabase implements Database {
     }
 
     @Override
-    public void setCustomValue(final String uuid, final String key, final String value) {
-        try (Connection connection = dataSource.getConnection();
-             PreparedStatement statement = connection.prepareStatement("REPLACE INTO customValues VALUES (?, ?, ?) ")) {
-            statement.setString(1, uuid);
-            statement.setString(2, key);
-            statement.setString(3, value);
-            statement.executeUpdate();
+    public boolean setCustomValue(final String uuid, final String key, final String value) {
+        if (!versioned) {
+            try (Connection connection = dataSource.getConnection();
+                 PreparedStatement statement = connection.prepareStatement("REPLACE INTO customValues VALUES (?, ?, ?) ")) {
+                statement.setString(1, uuid);
+                statement.setString(2, key);
+                statement.setString(3, value);
+                return statement.executeUpdate() > 0;
+            } catch (final SQLException e) {
+                LOG.log(Level.SEVERE, "Error Inserting individual's custom value into the database", e);
+                return false;
+            }
+        }
+
+        try (Connection connection = dataSource.getConnection()) {
+            // The value and the version bump are committed together so a reader never sees one without the other
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement("REPLACE INTO customValues VALUES (?, ?, ?) ");
+                 PreparedStatement versionStatement = connection.prepareStatement("UPDATE conversions SET version = version + 1 WHERE uuid = ?")) {
+                statement.setString(1, uuid);
+                statement.setString(2, key);
+                statement.setString(3, value);
+                statement.executeUpdate();
+
+                versionStatement.setString(1, uuid);
+                final boolean changed = versionStatement.executeUpdate() > 0;
+
+                connection.commit();
+                return changed;
+            } catch (final SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
         } catch (final SQLException e) {
             LOG.log(Level.SEVERE, "Error Inserting individual's custom value into the database", e);
+            return false;
         }
     }
 
@@ -164,14 +251,15 @@ final class ExternalDatabase implements Database {
     }
 
     @Override
-    public void setState(final String uuid, final String state) {
+    public boolean setState(final String uuid, final String state) {
         try (Connection connection = dataSource.getConnection();
-             PreparedStatement statement = connection.prepareStatement("Update conversions SET state = ? WHERE uuid = ?")) {
+             PreparedStatement statement = connection.prepareStatement("Update conversions SET state = ?" + versionIncrement() + " WHERE uuid = ? AND state <> 'cancelled'")) {
             statement.setString(1, state);
             statement.setString(2, uuid);
-            statement.executeUpdate();
+            return statement.executeUpdate() > 0;
         } catch (final SQLException e) {
             LOG.log(Level.SEVERE, "Error setting individual state", e);
+            return false;
         }
     }
 
@@ -208,17 +296,30 @@ final class ExternalDatabase implements Database {
     }
 
     @Override
-    public void setError(final String uuid, final int errorCode, final String errorMessage) {
+    public boolean setError(final String uuid, final int errorCode, final String errorMessage) {
         try (Connection connection = dataSource.getConnection();
-             PreparedStatement statement = connection.prepareStatement("UPDATE conversions SET state = ?, errorCode = ?, errorMessage = ? WHERE UUID = ?")) {
+             PreparedStatement statement = connection.prepareStatement("UPDATE conversions SET state = ?, errorCode = ?, errorMessage = ?" + versionIncrement() + " WHERE UUID = ? AND state <> 'cancelled'")) {
             statement.setString(1, "error");
             statement.setInt(2, errorCode);
             statement.setString(3, errorMessage == null ? "" : errorMessage);
             statement.setString(4, uuid);
 
-            statement.executeUpdate();
+            return statement.executeUpdate() > 0;
         } catch (final SQLException e) {
             LOG.log(Level.SEVERE, "Error setting individual error", e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean cancel(final String uuid) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement("UPDATE conversions SET state = 'cancelled'" + versionIncrement() + " WHERE uuid = ? AND state NOT IN ('processed', 'error', 'cancelled')")) {
+            statement.setString(1, uuid);
+            return statement.executeUpdate() > 0;
+        } catch (final SQLException e) {
+            LOG.log(Level.SEVERE, "Error cancelling individual", e);
+            return false;
         }
     }
 
@@ -255,6 +356,82 @@ final class ExternalDatabase implements Database {
         }
     }
 
+    @Override
+    public String getState(final String uuid) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stateStatement = connection.prepareStatement("SELECT state FROM conversions WHERE uuid = ?;")) {
+            stateStatement.setString(1, uuid);
+            final ResultSet stateResultSet = stateStatement.executeQuery();
+
+            if (!stateResultSet.next()) {
+                return null;
+            }
+
+            return stateResultSet.getString("state");
+        }
+    }
+
+    @Override
+    public Map<String, Map<String, String>> getStatuses(final Collection<String> uuids) throws SQLException {
+        final Map<String, Map<String, String>> statuses = new LinkedHashMap<>();
+        if (uuids.isEmpty()) {
+            return statuses;
+        }
+
+        final String placeholders = String.join(", ", Collections.nCopies(uuids.size(), "?"));
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statusesStatement = connection.prepareStatement("SELECT c.uuid, c.state, c.errorCode, c.errorMessage, v.mapKey, v.value " +
+                     "FROM conversions c LEFT JOIN customValues v ON v.uuid = c.uuid WHERE c.uuid IN (" + placeholders + ");")) {
+            int index = 1;
+            for (final String uuid : uuids) {
+                statusesStatement.setString(index++, uuid);
+            }
+
+            final ResultSet statusesResultSet = statusesStatement.executeQuery();
+
+            // Each conversion has a row per custom value, or a single row with no custom value
+            while (statusesResultSet.next()) {
+                final String uuid = statusesResultSet.getString("uuid");
+                Map<String, String> state = statuses.get(uuid);
+                if (state == null) {
+                    state = new LinkedHashMap<>();
+                    state.put("state", statusesResultSet.getString("state"));
+
+                    final String errorCode = statusesResultSet.getString("errorCode");
+                    if (errorCode != null) {
+                        state.put("errorCode", errorCode);
+                        state.put("error", statusesResultSet.getString("errorMessage"));
+                    }
+                    statuses.put(uuid, state);
+                }
+
+                final String mapKey = statusesResultSet.getString("mapKey");
+                if (mapKey != null) {
+                    state.put(mapKey, statusesResultSet.getString("value"));
+                }
+            }
+
+            return statuses;
+        }
+    }
+
+    @Override
+    public long getVersion(final String uuid) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement versionStatement = connection.prepareStatement(
+                     // Without the column every status has the same version, so only a missing uuid is distinguished
+                     "SELECT " + (versioned ? "version" : "0") + " AS version FROM conversions WHERE uuid = ?;")) {
+            versionStatement.setString(1, uuid);
+            final ResultSet versionResultSet = versionStatement.executeQuery();
+
+            if (!versionResultSet.next()) {
+                return -1;
+            }
+
+            return versionResultSet.getLong("version");
+        }
+    }
+
     @Override
     public String getCallbackUrl(final String uuid) throws SQLException {
         try (Connection connection = dataSource.getConnection();
@@ -19,6 +19,7 @@
 package com.idrsolutions.microservice.db;
 
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -56,8 +57,17 @@ class MemoryDatabase implements Database {
     }
 
     @Override
-    public void setCustomValue(final String uuid, final String key, final String value) {
-        imap.get(uuid).getCustomValues().put(key, value);
+    public boolean setCustomValue(final String uuid, final String key, final String value) {
+        final Individual individual = imap.get(uuid);
+        if (individual == null) {
+            return false;
+        }
+
+        synchronized (individual) {
+            individual.getCustomValues().put(key, value);
+            individual.version++;
+            return true;
+        }
     }
 
     @Override
@@ -66,16 +76,56 @@ class MemoryDatabase implements Database {
     }
 
     @Override
-    public void setState(final String uuid, final String state) {
-        imap.get(uuid).setState(state);
+    public boolean setState(final String uuid, final String state) {
+        final Individual individual = imap.get(uuid);
+        if (individual == null) {
+            return false;
+        }
+
+        synchronized (individual) {
+            if ("cancelled".equals(individual.state)) {
+                return false;
+            }
+            individual.setState(state);
+            individual.version++;
+            return true;
+        }
+    }
+
+    @Override
+    public boolean setError(final String uuid, final int errorCode, final String errorMessage) {
+        final Individual individual = imap.get(uuid);
+        if (individual == null) {
+            return false;
+        }
+
+        synchronized (individual) {
+            if ("cancelled".equals(individual.state)) {
+                return false;
+            }
+            individual.state = "error";
+            individual.errorCode = String.valueOf(errorCode);
+            individual.errorMessage = errorMessage == null ? "" : errorMessage;
+            individual.version++;
+            return true;
+        }
     }
 
     @Override
-    public void setError(final String uuid, final int errorCode, final String errorMessage) {
+    public boolean cancel(final String uuid) {
         final Individual individual = imap.get(uuid);
-        individual.state = "error";
-        individual.errorCode = String.valueOf(errorCode);
-        individual.errorMessage = errorMessage == null ? "" : errorMessage;
+        if (individual == null) {
+            return false;
+        }
+
+        synchronized (individual) {
+            if ("processed".equals(individual.state) || "error".equals(individual.state) || "cancelled".equals(individual.state)) {
+                return false;
+            }
+            individual.setState("cancelled");
+            individual.version++;
+            return true;
+        }
     }
 
     @Override
@@ -100,6 +150,40 @@ class MemoryDatabase implements Database {
         return state;
     }
 
+    @Override
+    public String getState(final String uuid) {
+        final Individual individual = imap.get(uuid);
+
+        if (individual == null) {
+            return null;
+        }
+
+        return individual.state;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> getStatuses(final Collection<String> uuids) {
+        final Map<String, Map<String, String>> statuses = new LinkedHashMap<>();
+        for (final String uuid : uuids) {
+            final Map<String, String> status = getStatus(uuid);
+            if (status != null) {
+                statuses.put(uuid, status);
+            }
+        }
+        return statuses;
+    }
+
+    @Override
+    public long getVersion(final String uuid) {
+        final Individual individual = imap.get(uuid);
+
+        if (individual == null) {
+            return -1;
+        }
+
+        return individual.version;
+    }
+
     @Override
     public String getCallbackUrl(final String uuid) {
         final Individual individual = imap.get(uuid);
@@ -142,9 +226,10 @@ class MemoryDatabase implements Database {
         private String callbackUrl;
         private boolean isAlive = true;
         private final long timestamp;
-        private String state;
+        private volatile String state;
         private String errorCode;
         private String errorMessage;
+        private volatile long version;
 
         private final Map<String, String> settings;
         private final Map<String, String> customValues = new ConcurrentHashMap<>();
@@ -0,0 +1,140 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.db;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wraps a {@link Database}, notifying the {@link StatusListener}s after each
+ * change to the status of a conversion. Updates that change nothing, such as
+ * those made after a conversion is cancelled, are not notified.
+ */
+class NotifyingDatabase implements Database {
+    private static final Logger LOG = Logger.getLogger(NotifyingDatabase.class.getName());
+
+    private final Database database;
+    private final List<StatusListener> listeners;
+
+    NotifyingDatabase(final Database database, final List<StatusListener> listeners) {
+        this.database = database;
+        this.listeners = listeners;
+    }
+
+    private void notifyListeners(final String uuid) {
+        for (final StatusListener listener : listeners) {
+            try {
+                listener.statusChanged(uuid);
+            } catch (final RuntimeException e) {
+                LOG.log(Level.WARNING, "Status listener failed for " + uuid, e);
+            }
+        }
+    }
+
+    @Override
+    public void initializeConversion(final String uuid, final String callbackUrl, final Map<String, String> customData,
+                                     final Map<String, String> settings) {
+        database.initializeConversion(uuid, callbackUrl, customData, settings);
+    }
+
+    @Override
+    public void cleanOldEntries(final long TTL) {
+        database.cleanOldEntries(TTL);
+    }
+
+    @Override
+    public boolean setCustomValue(final String uuid, final String key, final String value) {
+        final boolean changed = database.setCustomValue(uuid, key, value);
+        if (changed) {
+            notifyListeners(uuid);
+        }
+        return changed;
+    }
+
+    @Override
+    public void setAlive(final String uuid, final boolean alive) {
+        database.setAlive(uuid, alive);
+    }
+
+    @Override
+    public boolean setState(final String uuid, final String state) {
+        final boolean changed = database.setState(uuid, state);
+        if (changed) {
+            notifyListeners(uuid);
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean setError(final String uuid, final int errorCode, final String errorMessage) {
+        final boolean changed = database.setError(uuid, errorCode, errorMessage);
+        if (changed) {
+            notifyListeners(uuid);
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean cancel(final String uuid) {
+        final boolean cancelled = database.cancel(uuid);
+        if (cancelled) {
+            notifyListeners(uuid);
+        }
+        return cancelled;
+    }
+
+    @Override
+    public Map<String, String> getStatus(final String uuid) throws SQLException {
+        return database.getStatus(uuid);
+    }
+
+    @Override
+    public String getState(final String uuid) throws SQLException {
+        return database.getState(uuid);
+    }
+
+    @Override
+    public Map<String, Map<String, String>> getStatuses(final Collection<String> uuids) throws SQLException {
+        return database.getStatuses(uuids);
+    }
+
+    @Override
+    public long getVersion(final String uuid) throws SQLException {
+        return database.getVersion(uuid);
+    }
+
+    @Override
+    public String getCallbackUrl(final String uuid) throws SQLException {
+        return database.getCallbackUrl(uuid);
+    }
+
+    @Override
+    public Map<String, String> getSettings(final String uuid) throws SQLException {
+        return database.getSettings(uuid);
+    }
+
+    @Override
+    public Map<String, String> getCustomData(final String uuid) throws SQLException {
+        return database.getCustomData(uuid);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.db;
+
+/**
+ * Notified by {@link DBHandler} whenever the status of a conversion changes.
+ */
+public interface StatusListener {
+
+    /**
+     * Called after the state, error or a custom value of a conversion has
+     * changed. This is called on the thread that made the change, so it
+     * should return quickly.
+     *
+     * @param uuid the uuid of the conversion that changed
+     */
+    void statusChanged(final String uuid);
+
+}
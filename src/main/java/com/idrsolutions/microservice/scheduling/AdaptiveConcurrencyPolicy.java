@@ -0,0 +1,129 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.scheduling;
+
+import com.idrsolutions.microservice.utils.SystemLoad;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adjusts the number of conversions run at the same time to the load they put
+ * on the machine, using additive increase and multiplicative decrease.
+ * <p>
+ * Whenever a conversion finishes the policy checks for pressure: CPU
+ * utilisation above 90%, less than 10% of the heap free after garbage
+ * collection, less than 10% of physical memory available, or conversions
+ * taking more than twice as long as usual for their cost. Under pressure the
+ * limit is cut by a quarter, at most once per conversion so that one spell
+ * of pressure is not counted repeatedly. Otherwise, if the limit was holding
+ * conversions back and there is enough available memory for one more
+ * conversion's child processes, the limit grows by one for every limit's
+ * worth of conversions that finish.
+ */
+public class AdaptiveConcurrencyPolicy implements ConcurrencyPolicy {
+
+    private static final Logger LOG = Logger.getLogger(AdaptiveConcurrencyPolicy.class.getName());
+
+    private static final double MAX_CPU_LOAD = 0.9;
+    private static final double MIN_FREE_HEAP = 0.1;
+    private static final double MIN_AVAILABLE_PHYSICAL_MEMORY = 0.1;
+    private static final double LATENCY_TOLERANCE = 2;
+    private static final double DECREASE_FACTOR = 0.75;
+    private static final double RECENT_LATENCY_SMOOTHING = 0.3;
+    private static final double BASELINE_LATENCY_SMOOTHING = 0.02;
+
+    private volatile double limit;
+    private volatile int threadCount;
+
+    private double recentLatency;
+    private double baselineLatency;
+    private long lastDecrease = System.nanoTime();
+
+    /**
+     * Create the policy.
+     *
+     * @param initialLimit the number of conversions to allow before any have finished
+     */
+    public AdaptiveConcurrencyPolicy(final int initialLimit) {
+        this.limit = Math.max(1, initialLimit);
+        this.threadCount = Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int getLimit(final int threadCount) {
+        this.threadCount = threadCount;
+        return (int) Math.max(1, Math.min(threadCount, limit));
+    }
+
+    @Override
+    public synchronized void finished(final ConversionTask task, final long duration, final int running) {
+        // Compare conversions by time per unit of cost so that large documents do not look like slow downs
+        final double latency = (double) duration / Math.max(1, task.getCost());
+        if (baselineLatency == 0) {
+            baselineLatency = latency;
+            recentLatency = latency;
+        } else {
+            baselineLatency += (latency - baselineLatency) * BASELINE_LATENCY_SMOOTHING;
+            recentLatency += (latency - recentLatency) * RECENT_LATENCY_SMOOTHING;
+        }
+
+        final double previousLimit = limit;
+        final String pressure = getPressure();
+        if (pressure != null) {
+            // Conversions that started before the last decrease ran under the old limit
+            if (task.getStartedAt() - lastDecrease > 0) {
+                limit = Math.max(1, limit * DECREASE_FACTOR);
+                lastDecrease = System.nanoTime();
+                LOG.log(Level.FINE, String.format("Reducing conversion limit from %.2f to %.2f due to %s", previousLimit, limit, pressure));
+            }
+        } else if (running >= (int) limit && hasMemoryForAnother(running)) {
+            limit = Math.min(threadCount, limit + 1 / limit);
+            LOG.log(Level.FINEST, String.format("Raising conversion limit from %.2f to %.2f", previousLimit, limit));
+        }
+    }
+
+    private String getPressure() {
+        final double cpuLoad = SystemLoad.getCpuLoad();
+        if (cpuLoad > MAX_CPU_LOAD) {
+            return "CPU utilisation";
+        }
+        if (SystemLoad.getFreeHeapRatio() < MIN_FREE_HEAP) {
+            return "low free heap";
+        }
+        final long availableMemory = SystemLoad.getAvailablePhysicalMemory();
+        if (availableMemory >= 0 && availableMemory < SystemLoad.getTotalPhysicalMemory() * MIN_AVAILABLE_PHYSICAL_MEMORY) {
+            return "low available memory";
+        }
+        if (recentLatency > baselineLatency * LATENCY_TOLERANCE) {
+            return "increased conversion time";
+        }
+        return null;
+    }
+
+    private static boolean hasMemoryForAnother(final int running) {
+        final long childRss = SystemLoad.getChildProcessRss();
+        final long availableMemory = SystemLoad.getAvailablePhysicalMemory();
+        if (childRss < 0 || availableMemory < 0) {
+            return true;
+        }
+        // The finished conversion's processes have exited, so the others account for the resident memory
+        return availableMemory > childRss / Math.max(1, running - 1);
+    }
+}
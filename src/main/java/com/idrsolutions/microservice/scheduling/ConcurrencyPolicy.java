@@ -0,0 +1,47 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.scheduling;
+
+/**
+ * Decides how many conversions the {@link ConversionScheduler} runs at the
+ * same time, up to its thread count.
+ */
+public interface ConcurrencyPolicy {
+
+    /**
+     * Get the number of conversions that may run at the same time. This is
+     * called while the scheduler holds its lock, so implementations should be
+     * quick and must not block.
+     *
+     * @param threadCount the thread count of the scheduler, which the limit should not exceed
+     * @return the number of conversions that may run, at least 1
+     */
+    int getLimit(int threadCount);
+
+    /**
+     * Called when a conversion finishes, without the scheduler's lock held.
+     * Implementations must be thread safe.
+     *
+     * @param task the conversion that finished
+     * @param duration the time in nanoseconds the conversion took to run
+     * @param running the number of conversions that were running, including this one
+     */
+    default void finished(final ConversionTask task, final long duration, final int running) {
+    }
+}
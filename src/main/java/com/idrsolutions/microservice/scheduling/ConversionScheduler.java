@@ -0,0 +1,548 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.scheduling;
+
+import com.idrsolutions.microservice.utils.AdmissionControl;
+import com.idrsolutions.microservice.utils.DrainRate;
+import com.idrsolutions.microservice.utils.ResizableExecutor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An executor for conversions that lets a {@link SchedulingPolicy} choose which
+ * waiting conversion runs next, rather than always running them in the order
+ * they were queued.
+ * <p>
+ * How many conversions run at the same time is decided by a
+ * {@link ConcurrencyPolicy}, up to the thread count of the scheduler. If
+ * the scheduler has a {@link MemoryBudget}, a conversion only starts once its
+ * estimated memory can be reserved. The reservation is made as the conversion
+ * is taken from the queue, and must be released by the conversion when it
+ * finishes, or when it is abandoned, for example in
+ * {@link ConversionTask#finish()}.
+ * <p>
+ * Tasks that are not a {@link ConversionTask} are scheduled as conversions
+ * with the default priority and tenant.
+ */
+public class ConversionScheduler extends AbstractExecutorService implements AdmissionControl, ResizableExecutor,
+        ConversionSchedulerMXBean {
+
+    private static final Logger LOG = Logger.getLogger(ConversionScheduler.class.getName());
+
+    /**
+     * How often waiting workers ask the policy again, for policies whose choice
+     * changes as conversions wait.
+     */
+    private static final long RESELECT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The weight given to the newest wait in each tenant's average wait.
+     */
+    private static final int AVERAGE_WAIT_SMOOTHING = 8;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workChanged = lock.newCondition();
+    private final Condition terminated = lock.newCondition();
+
+    private final List<ConversionTask> pending = new ArrayList<>();
+    private final Set<ConversionTask> started = new HashSet<>();
+    private final Set<Thread> workers = new HashSet<>();
+    private final ThreadFactory threadFactory = Executors.defaultThreadFactory();
+    private final DrainRate drainRate = new DrainRate();
+    private final Map<String, Long> averageWaits = new HashMap<>();
+
+    private final SchedulingPolicy policy;
+    private final ConcurrencyPolicy concurrencyPolicy;
+    private final MemoryBudget memoryBudget;
+    private final int queueSize;
+
+    private int threadCount;
+    private int running;
+    private boolean shutdown;
+
+    /**
+     * Create the scheduler.
+     *
+     * @param policy the policy that chooses the next conversion to run
+     * @param threadCount the number of conversions to run at the same time
+     * @param queueSize the maximum number of conversions waiting to run, or {@link Integer#MAX_VALUE} for no limit
+     */
+    public ConversionScheduler(final SchedulingPolicy policy, final int threadCount, final int queueSize) {
+        this(policy, new FixedConcurrencyPolicy(), null, threadCount, queueSize);
+    }
+
+    /**
+     * Create the scheduler.
+     *
+     * @param policy the policy that chooses the next conversion to run
+     * @param concurrencyPolicy the policy that decides how many conversions run at the same time
+     * @param memoryBudget the memory conversions reserve from before they start, or null to not limit memory
+     * @param threadCount the maximum number of conversions to run at the same time
+     * @param queueSize the maximum number of conversions waiting to run, or {@link Integer#MAX_VALUE} for no limit
+     */
+    public ConversionScheduler(final SchedulingPolicy policy, final ConcurrencyPolicy concurrencyPolicy,
+                               final MemoryBudget memoryBudget, final int threadCount, final int queueSize) {
+        this.policy = policy;
+        this.concurrencyPolicy = concurrencyPolicy;
+        this.memoryBudget = memoryBudget;
+        this.threadCount = threadCount;
+        this.queueSize = queueSize;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        final ConversionTask task = command instanceof ConversionTask ? (ConversionTask) command
+                : new ConversionTask(null, ConversionTask.DEFAULT_PRIORITY, null, 0, 0, command);
+
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Scheduler has been shut down");
+            }
+            if (pending.size() >= queueSize) {
+                throw new RejectedExecutionException("Conversion queue is full");
+            }
+
+            task.setQueuedAt(System.nanoTime());
+            pending.add(task);
+
+            if (workers.size() < threadCount) {
+                addWorker();
+            }
+            workChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addWorker() {
+        final Thread worker = threadFactory.newThread(this::work);
+        workers.add(worker);
+        worker.start();
+    }
+
+    private void work() {
+        try {
+            ConversionTask task;
+            while ((task = take()) != null) {
+                try {
+                    task.run();
+                } catch (final Throwable e) {
+                    LOG.log(Level.SEVERE, "Conversion task failed", e);
+                } finally {
+                    finish(task);
+                }
+            }
+        } finally {
+            lock.lock();
+            try {
+                workers.remove(Thread.currentThread());
+                if (shutdown && workers.isEmpty()) {
+                    terminated.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private ConversionTask take() {
+        lock.lock();
+        try {
+            while (true) {
+                if (!workers.contains(Thread.currentThread())) {
+                    // The worker was abandoned while running a conversion that overran
+                    return null;
+                }
+                if (workers.size() > threadCount) {
+                    // The scheduler has been made smaller
+                    workers.remove(Thread.currentThread());
+                    return null;
+                }
+                if (pending.isEmpty()) {
+                    if (shutdown) {
+                        return null;
+                    }
+                    workChanged.await();
+                    continue;
+                }
+
+                final long now = System.nanoTime();
+                final List<ConversionTask> startable = running < concurrencyPolicy.getLimit(threadCount) ? getStartable(now) : null;
+                final ConversionTask task = startable != null && !startable.isEmpty() ? policy.select(startable, now) : null;
+                if (task != null && (memoryBudget == null || memoryBudget.tryReserve(task.getMemoryEstimate()))) {
+                    pending.remove(task);
+                    running++;
+                    started.add(task);
+                    task.setStartedAt(now);
+                    task.setWorker(Thread.currentThread());
+                    averageWaits.merge(task.getTenant(), now - task.getQueuedAt(),
+                            (average, wait) -> average + (wait - average) / AVERAGE_WAIT_SMOOTHING);
+                    policy.started(task);
+                    return task;
+                }
+                workChanged.awaitNanos(RESELECT_INTERVAL);
+            }
+        } catch (final InterruptedException e) {
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the waiting conversions that may start now, which is those whose
+     * memory fits in the budget. Once the longest waiting conversion the
+     * policy would run has waited for longer than the budget's maximum wait
+     * and its memory does not fit, none may start, so that smaller
+     * conversions cannot keep taking the memory it needs.
+     *
+     * @param now the current value of {@link System#nanoTime()}
+     * @return the conversions that may start, or null if none may start
+     */
+    private List<ConversionTask> getStartable(final long now) {
+        if (memoryBudget == null) {
+            return pending;
+        }
+
+        // Pending tasks are in the order they were queued, so the first eligible has waited longest
+        for (final ConversionTask task : pending) {
+            if (policy.isEligible(task)) {
+                if (now - task.getQueuedAt() > memoryBudget.getMaxWait() && !memoryBudget.fits(task.getMemoryEstimate())) {
+                    // Hold everything else back until the starved conversion has started
+                    return null;
+                }
+                break;
+            }
+        }
+        return pending.stream().filter(task -> memoryBudget.fits(task.getMemoryEstimate())).collect(Collectors.toList());
+    }
+
+    private void finish(final ConversionTask task) {
+        drainRate.recordCompletion();
+        final int wasRunning;
+        lock.lock();
+        try {
+            if (task.isAbandoned()) {
+                // The slot was given up when the task was abandoned
+                return;
+            }
+            started.remove(task);
+            wasRunning = running--;
+            policy.finished(task);
+            workChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        concurrencyPolicy.finished(task, System.nanoTime() - task.getStartedAt(), wasRunning);
+    }
+
+    /**
+     * Give up on the running conversions that have run for longer than the
+     * maximum duration. Their slots are freed straight away, so waiting
+     * conversions can start while the abandoned ones are stopped, and their
+     * worker threads retire once the conversions return.
+     *
+     * @param maxDuration the time in nanoseconds a conversion may run for
+     * @return the conversions that were abandoned
+     */
+    List<ConversionTask> abandonOverdue(final long maxDuration) {
+        final List<ConversionTask> overdue = new ArrayList<>();
+        lock.lock();
+        try {
+            final long now = System.nanoTime();
+            for (final ConversionTask task : started) {
+                if (now - task.getStartedAt() > maxDuration) {
+                    overdue.add(task);
+                }
+            }
+
+            for (final ConversionTask task : overdue) {
+                abandonTask(task);
+            }
+            replaceAbandonedWorkers();
+        } finally {
+            lock.unlock();
+        }
+        return overdue;
+    }
+
+    /**
+     * Remove a conversion that is waiting to run, so that it never starts.
+     *
+     * @param uuid the uuid of the conversion
+     * @return the conversion that was removed, or null if it is not waiting to run
+     */
+    public ConversionTask remove(final String uuid) {
+        lock.lock();
+        try {
+            for (final ConversionTask task : pending) {
+                if (uuid.equals(task.getUuid())) {
+                    pending.remove(task);
+                    workChanged.signalAll();
+                    return task;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give up on a running conversion. As with overrunning conversions, its
+     * slot is freed straight away and its worker thread retires once the
+     * conversion returns. The caller is responsible for stopping the
+     * conversion, for example with {@link ConversionTask#interrupt()}.
+     *
+     * @param uuid the uuid of the conversion
+     * @return the conversion that was abandoned, or null if it is not running
+     */
+    public ConversionTask abandon(final String uuid) {
+        lock.lock();
+        try {
+            for (final ConversionTask task : started) {
+                if (uuid.equals(task.getUuid())) {
+                    abandonTask(task);
+                    replaceAbandonedWorkers();
+                    return task;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void abandonTask(final ConversionTask task) {
+        started.remove(task);
+        task.setAbandoned(true);
+        workers.remove(task.getWorker());
+        running--;
+        policy.finished(task);
+    }
+
+    private void replaceAbandonedWorkers() {
+        if (!shutdown) {
+            for (int i = Math.min(threadCount, pending.size()) - workers.size(); i > 0; i--) {
+                addWorker();
+            }
+        }
+        if (shutdown && workers.isEmpty()) {
+            terminated.signalAll();
+        }
+        workChanged.signalAll();
+    }
+
+    @Override
+    public int getThreadCount() {
+        lock.lock();
+        try {
+            return threadCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setThreadCount(final int threadCount) {
+        lock.lock();
+        try {
+            this.threadCount = threadCount;
+            if (!shutdown) {
+                for (int i = Math.min(threadCount, pending.size()) - workers.size(); i > 0; i--) {
+                    addWorker();
+                }
+            }
+            workChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        lock.lock();
+        try {
+            return concurrencyPolicy.getLimit(threadCount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getReservedMemory() {
+        return memoryBudget != null ? memoryBudget.getReserved() : 0;
+    }
+
+    @Override
+    public int getQueueSize() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getRunningCount() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getTenantQueueDepths() {
+        final Map<String, Integer> depths = new TreeMap<>();
+        lock.lock();
+        try {
+            for (final ConversionTask task : pending) {
+                depths.merge(task.getTenant(), 1, Integer::sum);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return depths;
+    }
+
+    @Override
+    public Map<String, Long> getTenantOldestWaits() {
+        final Map<String, Long> waits = new TreeMap<>();
+        final long now = System.nanoTime();
+        lock.lock();
+        try {
+            // Pending tasks are in the order they were queued, so the first of each tenant has waited longest
+            for (final ConversionTask task : pending) {
+                waits.putIfAbsent(task.getTenant(), TimeUnit.NANOSECONDS.toMillis(now - task.getQueuedAt()));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return waits;
+    }
+
+    @Override
+    public Map<String, Long> getTenantAverageWaits() {
+        final Map<String, Long> waits = new TreeMap<>();
+        lock.lock();
+        try {
+            averageWaits.forEach((tenant, wait) -> waits.put(tenant, TimeUnit.NANOSECONDS.toMillis(wait)));
+        } finally {
+            lock.unlock();
+        }
+        return waits;
+    }
+
+    @Override
+    public boolean isSaturated() {
+        return getQueueSize() >= queueSize;
+    }
+
+    @Override
+    public long getRetryAfter() {
+        return drainRate.estimateSeconds();
+    }
+
+    @Override
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            if (workers.isEmpty()) {
+                terminated.signalAll();
+            }
+            workChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        lock.lock();
+        try {
+            shutdown();
+            final List<Runnable> remaining = new ArrayList<>(pending);
+            pending.clear();
+            for (final Thread worker : workers) {
+                worker.interrupt();
+            }
+            return remaining;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isShutdown() {
+        lock.lock();
+        try {
+            return shutdown;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        lock.lock();
+        try {
+            return shutdown && workers.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (!(shutdown && workers.isEmpty())) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = terminated.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.scheduling;
+
+import java.util.Map;
+
+/**
+ * The metrics of the {@link ConversionScheduler} that are published over JMX.
+ */
+public interface ConversionSchedulerMXBean {
+
+    /**
+     * @return the number of conversions that may run at the same time
+     */
+    int getThreadCount();
+
+    /**
+     * Change the number of conversions that may run at the same time, without
+     * discarding conversions waiting to run.
+     *
+     * @param threadCount the number of conversions that may run at the same time
+     */
+    void setThreadCount(int threadCount);
+
+    /**
+     * @return the number of conversions the concurrency policy currently allows to run at the same time
+     */
+    int getConcurrencyLimit();
+
+    /**
+     * @return the memory in bytes reserved by running conversions, or 0 if there is no memory budget
+     */
+    long getReservedMemory();
+
+    /**
+     * @return the number of conversions waiting to run
+     */
+    int getQueueSize();
+
+    /**
+     * @return the number of conversions currently running
+     */
+    int getRunningCount();
+
+    /**
+     * @return the number of conversions waiting to run for each tenant with waiting conversions
+     */
+    Map<String, Integer> getTenantQueueDepths();
+
+    /**
+     * @return the time in milliseconds that the longest waiting conversion of each tenant has waited so far
+     */
+    Map<String, Long> getTenantOldestWaits();
+
+    /**
+     * @return a moving average of the time in milliseconds that each tenant's recently started conversions waited
+     */
+    Map<String, Long> getTenantAverageWaits();
+}
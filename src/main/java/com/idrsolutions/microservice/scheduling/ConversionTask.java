@@ -0,0 +1,183 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.scheduling;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A conversion waiting to run on the {@link ConversionScheduler}, along with
+ * the details the scheduler uses to decide when it should run.
+ */
+public class ConversionTask implements Runnable {
+
+    /**
+     * The priority of conversions that were not given one.
+     */
+    public static final int DEFAULT_PRIORITY = 0;
+
+    /**
+     * The tenant of conversions that were not given one.
+     */
+    public static final String DEFAULT_TENANT = "default";
+
+    private final String uuid;
+    private final int priority;
+    private final String tenant;
+    private final long cost;
+    private final long memoryEstimate;
+    private final Runnable conversion;
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    private long queuedAt;
+    private long startedAt;
+    private volatile Thread worker;
+    private boolean abandoned;
+    private volatile Runnable onFinish;
+
+    /**
+     * Create a task for the conversion.
+     *
+     * @param uuid the uuid of the conversion, or null if the task is not a conversion
+     * @param priority the priority of the conversion, higher values run sooner
+     * @param tenant the tenant the conversion belongs to, or null for the default tenant
+     * @param cost the estimated cost of the conversion, such as the size of the input file
+     * @param memoryEstimate the memory in bytes to reserve from the scheduler's {@link MemoryBudget}, or 0 for none
+     * @param conversion the work to run
+     */
+    public ConversionTask(final String uuid, final int priority, final String tenant, final long cost,
+                          final long memoryEstimate, final Runnable conversion) {
+        this.uuid = uuid;
+        this.priority = priority;
+        this.tenant = tenant != null ? tenant : DEFAULT_TENANT;
+        this.cost = cost;
+        this.memoryEstimate = memoryEstimate;
+        this.conversion = conversion;
+    }
+
+    @Override
+    public void run() {
+        conversion.run();
+    }
+
+    /**
+     * @return the uuid of the conversion, or null if the task is not a conversion
+     */
+    public String getUuid() {
+        return uuid;
+    }
+
+    /**
+     * @return the priority of the conversion, higher values run sooner
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the tenant the conversion belongs to
+     */
+    public String getTenant() {
+        return tenant;
+    }
+
+    /**
+     * @return the estimated cost of the conversion, only comparable with the costs of other conversions
+     */
+    public long getCost() {
+        return cost;
+    }
+
+    /**
+     * @return the memory in bytes to reserve from the scheduler's {@link MemoryBudget}, or 0 for none
+     */
+    public long getMemoryEstimate() {
+        return memoryEstimate;
+    }
+
+    /**
+     * @return the value of {@link System#nanoTime()} when the task was queued
+     */
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    void setQueuedAt(final long queuedAt) {
+        this.queuedAt = queuedAt;
+    }
+
+    /**
+     * @return the value of {@link System#nanoTime()} when the task started running
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    void setStartedAt(final long startedAt) {
+        this.startedAt = startedAt;
+    }
+
+    Thread getWorker() {
+        return worker;
+    }
+
+    void setWorker(final Thread worker) {
+        this.worker = worker;
+    }
+
+    /**
+     * Interrupt the thread running the conversion, if it has started.
+     */
+    public void interrupt() {
+        final Thread thread = worker;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Set the work to run once the conversion has finished, such as sending
+     * its callback and releasing its memory reservation. See {@link #finish()}.
+     *
+     * @param onFinish the work to run when the conversion finishes
+     */
+    public void setOnFinish(final Runnable onFinish) {
+        this.onFinish = onFinish;
+    }
+
+    /**
+     * Run the work set by {@link #setOnFinish(Runnable)} if it has not been
+     * run already. A conversion that is abandoned can be finished both by
+     * whoever abandoned it and by the conversion itself if it ever returns,
+     * but only the first of them has any effect.
+     */
+    public void finish() {
+        final Runnable finisher = onFinish;
+        if (finished.compareAndSet(false, true) && finisher != null) {
+            finisher.run();
+        }
+    }
+
+    boolean isAbandoned() {
+        return abandoned;
+    }
+
+    void setAbandoned(final boolean abandoned) {
+        this.abandoned = abandoned;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.scheduling;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops conversions on a {@link ConversionScheduler} that run for longer than
+ * a maximum duration, so that a hung conversion cannot hold a thread forever.
+ * <p>
+ * An overdue conversion's slot is freed immediately. The timeout handler is
+ * then given the conversion to clean up after, such as killing its processes
+ * and recording the failure, before its worker thread is interrupted.
+ */
+public class ConversionWatchdog {
+    private static final Logger LOG = Logger.getLogger(ConversionWatchdog.class.getName());
+
+    private final ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
+
+    /**
+     * Create and start the watchdog.
+     *
+     * @param scheduler the scheduler running the conversions
+     * @param maxDuration the time in milliseconds a conversion may run for
+     * @param onTimeout the handler for conversions that run for too long
+     */
+    public ConversionWatchdog(final ConversionScheduler scheduler, final long maxDuration,
+                              final Consumer<ConversionTask> onTimeout) {
+        final long maxDurationNanos = TimeUnit.MILLISECONDS.toNanos(maxDuration);
+        final long frequency = Math.max(1, Math.min(1000, maxDuration / 4));
+        scheduledExecutorService.scheduleWithFixedDelay(() -> {
+            for (final ConversionTask task : scheduler.abandonOverdue(maxDurationNanos)) {
+                LOG.log(Level.WARNING, "Conversion " + task.getUuid() + " exceeded the maximum duration of " + maxDuration + "ms");
+                try {
+                    onTimeout.accept(task);
+                } catch (final RuntimeException e) {
+                    LOG.log(Level.SEVERE, "Failed to clean up after conversion " + task.getUuid(), e);
+                }
+                task.interrupt();
+            }
+        }, frequency, frequency, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the watchdog. See {@link ScheduledExecutorService#shutdownNow()}
+     */
+    public void shutdownNow() {
+        scheduledExecutorService.shutdownNow();
+    }
+
+    /**
+     * Wait for the watchdog to stop. See {@link ScheduledExecutorService#awaitTermination(long, TimeUnit)}
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout argument
+     * @return true if the watchdog stopped, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return scheduledExecutorService.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.scheduling;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares conversion threads between tenants using weighted fair queuing, so
+ * that a tenant submitting many conversions cannot delay everyone else's.
+ * <p>
+ * Each tenant has a virtual time that advances by the inverse of its weight
+ * each time one of its conversions starts, and the waiting tenant with the
+ * lowest virtual time goes next. A tenant with twice the weight of another
+ * therefore starts twice as many conversions while both are waiting. Tenants
+ * that have been idle rejoin at the current virtual time rather than being
+ * able to spend the time they were idle. The order of a tenant's own
+ * conversions is left to another policy.
+ */
+public class FairSharePolicy implements SchedulingPolicy {
+
+    private final SchedulingPolicy tenantPolicy;
+    private final Map<String, Integer> weights;
+    private final int maxConcurrentPerTenant;
+
+    private final Map<String, Double> virtualTimes = new HashMap<>();
+    private final Map<String, Integer> running = new HashMap<>();
+    private double virtualTime;
+
+    /**
+     * Create the policy.
+     *
+     * @param tenantPolicy the policy that orders the conversions of a single tenant
+     * @param weights the weight of each tenant, tenants not in the map have a weight of 1
+     * @param maxConcurrentPerTenant the maximum number of conversions a tenant may run at the same time
+     */
+    public FairSharePolicy(final SchedulingPolicy tenantPolicy, final Map<String, Integer> weights,
+                           final int maxConcurrentPerTenant) {
+        this.tenantPolicy = tenantPolicy;
+        this.weights = new HashMap<>(weights);
+        this.maxConcurrentPerTenant = maxConcurrentPerTenant;
+    }
+
+    @Override
+    public ConversionTask select(final List<ConversionTask> pending, final long now) {
+        final Map<String, List<ConversionTask>> byTenant = new LinkedHashMap<>();
+        for (final ConversionTask task : pending) {
+            byTenant.computeIfAbsent(task.getTenant(), tenant -> new ArrayList<>()).add(task);
+        }
+
+        String selectedTenant = null;
+        double selectedTime = Double.MAX_VALUE;
+        for (final String tenant : byTenant.keySet()) {
+            if (!isEligible(tenant)) {
+                continue;
+            }
+            final double time = getVirtualTime(tenant);
+            // Tenants are in the order of their longest waiting conversion, so ties go to the longest waiting
+            if (time < selectedTime) {
+                selectedTenant = tenant;
+                selectedTime = time;
+            }
+        }
+
+        return selectedTenant == null ? null : tenantPolicy.select(byTenant.get(selectedTenant), now);
+    }
+
+    @Override
+    public boolean isEligible(final ConversionTask task) {
+        return isEligible(task.getTenant()) && tenantPolicy.isEligible(task);
+    }
+
+    private boolean isEligible(final String tenant) {
+        return running.getOrDefault(tenant, 0) < maxConcurrentPerTenant;
+    }
+
+    @Override
+    public void started(final ConversionTask task) {
+        final String tenant = task.getTenant();
+        final double time = getVirtualTime(tenant);
+        virtualTime = time;
+        virtualTimes.put(tenant, time + 1.0 / weights.getOrDefault(tenant, 1));
+        running.merge(tenant, 1, Integer::sum);
+        tenantPolicy.started(task);
+    }
+
+    @Override
+    public void finished(final ConversionTask task) {
+        final String tenant = task.getTenant();
+        if (running.merge(tenant, -1, Integer::sum) <= 0) {
+            running.remove(tenant);
+            // An idle tenant would rejoin at the current virtual time anyway
+            if (getVirtualTime(tenant) <= virtualTime) {
+                virtualTimes.remove(tenant);
+            }
+        }
+        tenantPolicy.finished(task);
+    }
+
+    private double getVirtualTime(final String tenant) {
+        return Math.max(virtualTimes.getOrDefault(tenant, 0.0), virtualTime);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.scheduling;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A node-wide amount of memory that running conversions reserve from, so that
+ * many small conversions can run side by side while only a few large ones do.
+ * <p>
+ * A conversion's estimated memory grows with the size of its input file, up
+ * to the memory limit of a single conversion. A conversion estimated to need
+ * more than the whole budget may still run, but only on its own. So that
+ * large conversions are not starved by a stream of small ones, once the
+ * longest waiting conversion has waited for the maximum wait, no other
+ * conversion may start until it has.
+ */
+public class MemoryBudget {
+
+    /**
+     * The memory every conversion is assumed to need regardless of its input.
+     */
+    private static final long BASE_ESTIMATE = 64L * 1024 * 1024;
+
+    private final long total;
+    private final long conversionLimit;
+    private final long inputMultiplier;
+    private final long maxWait;
+
+    private long reserved;
+
+    /**
+     * Create the budget.
+     *
+     * @param total the memory in bytes shared by all running conversions
+     * @param conversionLimit the most memory in bytes a single conversion may use, or a negative value for no limit
+     * @param inputMultiplier the bytes of memory a conversion is estimated to need for each byte of input
+     * @param maxWait the time in milliseconds a conversion may wait for memory before others are held back
+     */
+    public MemoryBudget(final long total, final long conversionLimit, final long inputMultiplier, final long maxWait) {
+        this.total = total;
+        this.conversionLimit = conversionLimit;
+        this.inputMultiplier = inputMultiplier;
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+    }
+
+    /**
+     * Estimate the memory a conversion needs from the size of its input.
+     *
+     * @param inputSize the size of the input file in bytes
+     * @return the estimated memory in bytes
+     */
+    public long estimate(final long inputSize) {
+        final long estimate = BASE_ESTIMATE + Math.min(inputSize, Long.MAX_VALUE / 2 / inputMultiplier) * inputMultiplier;
+        return conversionLimit > 0 ? Math.min(conversionLimit, estimate) : estimate;
+    }
+
+    /**
+     * Reserve memory for a conversion if there is enough left.
+     *
+     * @param memory the memory in bytes to reserve
+     * @return true if the memory was reserved, false if it does not fit
+     */
+    public synchronized boolean tryReserve(final long memory) {
+        if (!fits(memory)) {
+            return false;
+        }
+        reserved += memory;
+        return true;
+    }
+
+    /**
+     * Check whether a reservation would currently succeed.
+     *
+     * @param memory the memory in bytes to reserve
+     * @return true if the memory fits in the budget
+     */
+    public synchronized boolean fits(final long memory) {
+        return reserved == 0 || reserved + memory <= total;
+    }
+
+    /**
+     * Return memory reserved by a conversion that has finished.
+     *
+     * @param memory the memory in bytes that was reserved
+     */
+    public synchronized void release(final long memory) {
+        reserved = Math.max(0, reserved - memory);
+    }
+
+    /**
+     * @return the memory in bytes currently reserved by running conversions
+     */
+    public synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * @return the time in nanoseconds a conversion may wait for memory before others are held back
+     */
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * @return the memory in bytes shared by all running conversions
+     */
+    public long getTotal() {
+        return total;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.scheduling;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the conversion with the highest priority first, taking the longest
+ * waiting conversion when priorities are equal. To prevent low priority
+ * conversions from starving, a conversion's priority is raised by one for
+ * every aging interval it has spent waiting.
+ */
+public class PriorityPolicy implements SchedulingPolicy {
+
+    private final long agingInterval;
+
+    /**
+     * Create the policy.
+     *
+     * @param agingInterval the time in milliseconds a conversion must wait to be raised by one priority
+     */
+    public PriorityPolicy(final long agingInterval) {
+        this.agingInterval = TimeUnit.MILLISECONDS.toNanos(agingInterval);
+    }
+
+    @Override
+    public ConversionTask select(final List<ConversionTask> pending, final long now) {
+        ConversionTask selected = null;
+        long selectedPriority = Long.MIN_VALUE;
+        for (final ConversionTask task : pending) {
+            final long priority = task.getPriority() + (now - task.getQueuedAt()) / agingInterval;
+            // Pending tasks are in the order they were queued, so ties go to the longest waiting
+            if (priority > selectedPriority) {
+                selected = task;
+                selectedPriority = priority;
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.scheduling;
+
+import java.util.List;
+
+/**
+ * Decides which of the waiting conversions the {@link ConversionScheduler}
+ * runs next.
+ */
+public interface SchedulingPolicy {
+
+    /**
+     * Choose the next conversion to run. This is called while the scheduler
+     * holds its lock, so implementations should be quick and must not block.
+     *
+     * @param pending the waiting conversions in the order they were queued, never empty
+     * @param now the current value of {@link System#nanoTime()}
+     * @return one of the pending conversions, or null if none of them should run yet
+     */
+    ConversionTask select(List<ConversionTask> pending, long now);
+
+    /**
+     * Check whether a conversion could be chosen by {@link #select(List, long)}
+     * now. This is called while the scheduler holds its lock, so
+     * implementations should be quick and must not block.
+     *
+     * @param task the waiting conversion
+     * @return true if the conversion may be chosen, false if the policy is holding it back
+     */
+    default boolean isEligible(final ConversionTask task) {
+        return true;
+    }
+
+    /**
+     * Called when a conversion chosen by {@link #select(List, long)} starts.
+     *
+     * @param task the conversion that started
+     */
+    default void started(final ConversionTask task) {
+    }
+
+    /**
+     * Called when a conversion chosen by {@link #select(List, long)} finishes.
+     *
+     * @param task the conversion that finished
+     */
+    default void finished(final ConversionTask task) {
+    }
+}
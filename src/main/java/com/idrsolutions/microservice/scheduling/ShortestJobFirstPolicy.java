@@ -0,0 +1,59 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.scheduling;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the conversion with the lowest estimated cost first, which lowers the
+ * typical wait when small and large documents are converted together. So
+ * that large documents still finish, any conversion that has waited longer
+ * than the maximum wait runs before the rest, longest waiting first.
+ */
+public class ShortestJobFirstPolicy implements SchedulingPolicy {
+
+    private final long maxWait;
+
+    /**
+     * Create the policy.
+     *
+     * @param maxWait the time in milliseconds after which a conversion runs regardless of its cost
+     */
+    public ShortestJobFirstPolicy(final long maxWait) {
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+    }
+
+    @Override
+    public ConversionTask select(final List<ConversionTask> pending, final long now) {
+        // Pending tasks are in the order they were queued, so the first has waited longest
+        final ConversionTask oldest = pending.get(0);
+        if (now - oldest.getQueuedAt() > maxWait) {
+            return oldest;
+        }
+
+        ConversionTask selected = oldest;
+        for (final ConversionTask task : pending) {
+            if (task.getCost() < selected.getCost()) {
+                selected = task;
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+/**
+ * Implemented by executors with a bounded queue, so that new work can be
+ * turned away before it is accepted when the executor is saturated.
+ */
+public interface AdmissionControl {
+
+    /**
+     * Check whether the queue is full, in which case new work will be rejected.
+     *
+     * @return true if no more work can be queued
+     */
+    boolean isSaturated();
+
+    /**
+     * Estimate how long it will take for space to become available in the
+     * queue, based on the rate at which queued work has recently completed.
+     *
+     * @return the number of seconds a client should wait before retrying
+     */
+    long getRetryAfter();
+}
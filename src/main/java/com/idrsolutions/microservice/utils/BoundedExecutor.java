@@ -0,0 +1,84 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed size thread pool whose queue holds at most a set number of waiting
+ * tasks. Tasks submitted once the queue is full are rejected with a
+ * {@link java.util.concurrent.RejectedExecutionException}.
+ */
+public class BoundedExecutor extends ThreadPoolExecutor implements AdmissionControl, ResizableExecutor {
+
+    private final int queueSize;
+    private final DrainRate drainRate = new DrainRate();
+
+    /**
+     * Create the executor.
+     *
+     * @param threadCount the number of threads in the pool
+     * @param queueSize the maximum number of tasks waiting for a thread, or {@link Integer#MAX_VALUE} for no limit
+     */
+    public BoundedExecutor(final int threadCount, final int queueSize) {
+        super(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, createQueue(queueSize));
+        this.queueSize = queueSize;
+    }
+
+    private static BlockingQueue<Runnable> createQueue(final int queueSize) {
+        return queueSize == Integer.MAX_VALUE ? new LinkedBlockingQueue<>() : new ArrayBlockingQueue<>(queueSize);
+    }
+
+    @Override
+    protected void afterExecute(final Runnable r, final Throwable t) {
+        super.afterExecute(r, t);
+        drainRate.recordCompletion();
+    }
+
+    @Override
+    public int getThreadCount() {
+        return getCorePoolSize();
+    }
+
+    @Override
+    public synchronized void setThreadCount(final int threadCount) {
+        // The core size may never exceed the maximum size, so change them in the order that keeps it below
+        if (threadCount > getMaximumPoolSize()) {
+            setMaximumPoolSize(threadCount);
+            setCorePoolSize(threadCount);
+        } else {
+            setCorePoolSize(threadCount);
+            setMaximumPoolSize(threadCount);
+        }
+    }
+
+    @Override
+    public boolean isSaturated() {
+        return getQueue().size() >= queueSize;
+    }
+
+    @Override
+    public long getRetryAfter() {
+        return drainRate.estimateSeconds();
+    }
+}
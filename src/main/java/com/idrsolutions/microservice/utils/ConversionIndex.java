@@ -0,0 +1,442 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+import com.idrsolutions.microservice.db.DBHandler;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * An index of completed conversions keyed by the hash of the input file and
+ * the settings it was converted with. When an identical file is submitted
+ * again with the same settings, the output of the earlier conversion is
+ * hardlinked (or copied) to the new conversion's uuid instead of converting
+ * the file again.
+ * <p>
+ * Conversions that are still queued or running are tracked as well, so that
+ * identical submissions arriving at the same time attach to the conversion
+ * already in flight and share its result rather than each taking a place on
+ * the conversion queue.
+ */
+public class ConversionIndex {
+    private static final Logger LOG = Logger.getLogger(ConversionIndex.class.getName());
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private final String outputPath;
+
+    private final Map<String, Completed> completed = new ConcurrentHashMap<>();
+    private final Map<String, InFlight> inFlight = new HashMap<>();
+    private final Map<String, Long> reusedAt = new ConcurrentHashMap<>();
+
+    /**
+     * Create an index of the conversions written to the given output path.
+     *
+     * @param outputPath the directory the conversion outputs are written to
+     */
+    public ConversionIndex(final String outputPath) {
+        this.outputPath = outputPath;
+    }
+
+    /**
+     * Create the digest used to hash input files as they are written.
+     *
+     * @return a new SHA-256 digest
+     */
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Create the key that identifies a conversion of a file with the given
+     * settings. Settings are put in a canonical order so that the same
+     * settings always produce the same key.
+     *
+     * @param fileDigest the digest of the input file
+     * @param settings the settings of the conversion, may be null
+     * @return the key of the conversion
+     */
+    public static String createKey(final byte[] fileDigest, final Map<String, String> settings) {
+        final JsonObjectBuilder canonicalSettings = Json.createObjectBuilder();
+        if (settings != null) {
+            new TreeMap<>(settings).forEach(canonicalSettings::add);
+        }
+
+        final MessageDigest digest = createDigest();
+        digest.update(fileDigest);
+        digest.update(canonicalSettings.build().toString().getBytes(StandardCharsets.UTF_8));
+
+        final StringBuilder key = new StringBuilder();
+        for (final byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Find a completed conversion with the given key whose output is still
+     * available.
+     *
+     * @param key the key of the conversion
+     * @return the uuid of the completed conversion, or null if there is none
+     */
+    public String findCompleted(final String key) {
+        final Completed entry = completed.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        try {
+            final Map<String, String> status = DBHandler.getInstance().getStatus(entry.uuid);
+            if (status != null && "processed".equals(status.get("state"))) {
+                return entry.uuid;
+            }
+        } catch (final SQLException e) {
+            LOG.log(Level.WARNING, "Database error while looking up conversion " + entry.uuid, e);
+            return null;
+        }
+
+        completed.remove(key, entry);
+        return null;
+    }
+
+    /**
+     * Record that the conversion with the given key completed successfully.
+     *
+     * @param key the key of the conversion
+     * @param uuid the uuid of the conversion
+     */
+    public void registerCompleted(final String key, final String uuid) {
+        completed.put(key, new Completed(uuid, new Date().getTime()));
+    }
+
+    /**
+     * Attach the conversion to an identical conversion that is already queued
+     * or running. If there is none, the conversion becomes the one in flight
+     * for the key and should be queued as normal.
+     *
+     * @param key the key of the conversion
+     * @param uuid the uuid of the conversion
+     * @param inputFile the input file of the conversion
+     * @return true if the conversion was attached and should not be queued, false if it should be queued
+     */
+    public boolean attach(final String key, final String uuid, final File inputFile) {
+        final boolean started;
+        synchronized (this) {
+            final InFlight running = inFlight.get(key);
+            if (running == null) {
+                inFlight.put(key, new InFlight(uuid));
+                return false;
+            }
+            running.followers.add(new Follower(uuid, inputFile));
+            started = running.started;
+        }
+
+        // The database is updated outside the lock so that a slow database does not hold up every other conversion
+        if (started) {
+            DBHandler.getInstance().setState(uuid, "processing");
+        }
+        return true;
+    }
+
+    /**
+     * Mark the conversion in flight for the key as started, moving every
+     * conversion attached to it into the processing state.
+     *
+     * @param key the key of the conversion
+     */
+    public void markStarted(final String key) {
+        final List<String> followers = new ArrayList<>();
+        synchronized (this) {
+            final InFlight running = inFlight.get(key);
+            if (running != null) {
+                running.started = true;
+                running.followers.forEach(follower -> followers.add(follower.uuid));
+            }
+        }
+
+        followers.forEach(follower -> DBHandler.getInstance().setState(follower, "processing"));
+    }
+
+    /**
+     * Mark the conversion in flight for the key as finished. Later
+     * submissions with the same key will no longer attach to it.
+     *
+     * @param key the key of the conversion
+     * @return the conversions that were attached to it and need its result
+     */
+    public synchronized List<Follower> detach(final String key) {
+        final InFlight running = inFlight.remove(key);
+        return running != null ? running.followers : Collections.emptyList();
+    }
+
+    /**
+     * Stop tracking a conversion that was cancelled before it started. The
+     * conversions attached to it will not receive a result from it and are
+     * returned so they can be queued themselves.
+     *
+     * @param uuid the uuid of the cancelled conversion
+     * @return the conversions that were attached to it
+     */
+    public synchronized List<Follower> cancelInFlight(final String uuid) {
+        for (final Iterator<InFlight> it = inFlight.values().iterator(); it.hasNext(); ) {
+            final InFlight running = it.next();
+            if (uuid.equals(running.uuid)) {
+                it.remove();
+                return running.followers;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Detach a cancelled conversion from the conversion it was attached to,
+     * so that it does not receive its result.
+     *
+     * @param uuid the uuid of the cancelled conversion
+     * @return true if the conversion was attached to another conversion, false otherwise
+     */
+    public synchronized boolean cancelAttached(final String uuid) {
+        for (final InFlight running : inFlight.values()) {
+            if (running.followers.removeIf(follower -> uuid.equals(follower.uuid))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Give an attached conversion the result of the conversion it was
+     * attached to. A successful result is reused as in
+     * {@link #reuse(String, String, Set)} and an error is copied.
+     *
+     * @param sourceUuid the uuid of the finished conversion
+     * @param targetUuid the uuid of the attached conversion
+     * @param outputKeys the status values that describe the output and are copied with it
+     * @return true if the result was shared, false if the attached conversion needs to be converted itself
+     */
+    public boolean shareResult(final String sourceUuid, final String targetUuid, final Set<String> outputKeys) {
+        final Map<String, String> status;
+        try {
+            status = DBHandler.getInstance().getStatus(sourceUuid);
+        } catch (final SQLException e) {
+            LOG.log(Level.WARNING, "Database error while sharing the result of " + sourceUuid, e);
+            return false;
+        }
+
+        if (status != null && "error".equals(status.get("state"))) {
+            int errorCode;
+            try {
+                errorCode = Integer.parseInt(status.get("errorCode"));
+            } catch (final NumberFormatException e) {
+                errorCode = 0;
+            }
+            DBHandler.getInstance().setError(targetUuid, errorCode, status.get("error"));
+            return true;
+        }
+
+        return reuse(sourceUuid, targetUuid, outputKeys);
+    }
+
+    /**
+     * Remove all conversions that are older than the passed Time to Live, as
+     * their output may be deleted at any time.
+     *
+     * @param TTL the maximum amount of time an individual is allowed to remain on the server
+     */
+    public void cleanOldEntries(final long TTL) {
+        final long oldest = new Date().getTime() - TTL;
+        completed.values().removeIf(entry -> entry.timestamp < oldest);
+        reusedAt.values().removeIf(timestamp -> timestamp < oldest);
+    }
+
+    /**
+     * Get the time an output was reused, which the {@link FileDeletionService}
+     * counts its time to live from. Reused outputs may be hardlinks to the
+     * earlier conversion's files, so they cannot be given their own
+     * modification time.
+     *
+     * @param output a file or directory in the output path
+     * @return the time in milliseconds the output was reused, or 0 if it was not reused
+     */
+    public long getReusedTime(final File output) {
+        return reusedAt.getOrDefault(output.getName(), 0L);
+    }
+
+    /**
+     * Give the target conversion the result of the source conversion. Every
+     * output file or directory named after the source uuid is hardlinked (or
+     * copied) under the target uuid, the source's status values that describe
+     * its output are copied with references to the source uuid replaced, and
+     * the target is marked as processed. Other status values were derived
+     * from the source's own request, so they are not copied.
+     *
+     * @param sourceUuid the uuid of the completed conversion
+     * @param targetUuid the uuid of the conversion to complete
+     * @param outputKeys the status values that describe the output and are copied with it
+     * @return true if the result was reused, false if the target still needs to be converted
+     */
+    public boolean reuse(final String sourceUuid, final String targetUuid, final Set<String> outputKeys) {
+        final Map<String, String> status;
+        try {
+            status = DBHandler.getInstance().getStatus(sourceUuid);
+        } catch (final SQLException e) {
+            LOG.log(Level.WARNING, "Database error while reusing conversion " + sourceUuid, e);
+            return false;
+        }
+
+        if (status == null || !"processed".equals(status.get("state"))) {
+            return false;
+        }
+
+        final File[] outputs = new File(outputPath).listFiles((dir, name) -> name.startsWith(sourceUuid));
+        if (outputs == null || outputs.length == 0) {
+            // The output has already been removed
+            return false;
+        }
+
+        final List<File> targets = new ArrayList<>();
+        final long now = new Date().getTime();
+        try {
+            for (final File output : outputs) {
+                final File target = new File(outputPath, targetUuid + output.getName().substring(sourceUuid.length()));
+                targets.add(target);
+                reusedAt.put(target.getName(), now);
+                linkTree(output.toPath(), target.toPath(), sourceUuid, targetUuid);
+            }
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to link the output of " + sourceUuid + " to " + targetUuid, e);
+            // Do not leave a partial result behind for the conversion that will now run
+            for (final File target : targets) {
+                reusedAt.remove(target.getName());
+                FileHelper.deleteFolder(target);
+            }
+            return false;
+        }
+
+        for (final String key : outputKeys) {
+            final String value = status.get(key);
+            if (value != null) {
+                DBHandler.getInstance().setCustomValue(targetUuid, key, value.replace(sourceUuid, targetUuid));
+            }
+        }
+        DBHandler.getInstance().setState(targetUuid, "processed");
+        return true;
+    }
+
+    /**
+     * Recreate the file or directory at the target path, hardlinking every
+     * file where possible and renaming any path segment containing the source
+     * uuid.
+     * <p>
+     * Hardlinks share the source's modification time, and changing it would
+     * change the source's too, so the target's time to live is recorded
+     * separately, see {@link #getReusedTime(File)}.
+     */
+    private static void linkTree(final Path source, final Path target, final String sourceUuid, final String targetUuid) throws IOException {
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (final Path path : (Iterable<Path>) paths::iterator) {
+                final Path destination = target.resolve(source.relativize(path).toString().replace(sourceUuid, targetUuid));
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(destination);
+                } else {
+                    try {
+                        Files.createLink(destination, path);
+                    } catch (final UnsupportedOperationException | IOException e) {
+                        Files.copy(path, destination);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Completed {
+        private final String uuid;
+        private final long timestamp;
+
+        Completed(final String uuid, final long timestamp) {
+            this.uuid = uuid;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * A conversion that is attached to an identical conversion in flight.
+     */
+    public static final class Follower {
+        private final String uuid;
+        private final File inputFile;
+
+        Follower(final String uuid, final File inputFile) {
+            this.uuid = uuid;
+            this.inputFile = inputFile;
+        }
+
+        /**
+         * @return the uuid of the attached conversion
+         */
+        public String getUuid() {
+            return uuid;
+        }
+
+        /**
+         * @return the input file of the attached conversion
+         */
+        public File getInputFile() {
+            return inputFile;
+        }
+    }
+
+    private static final class InFlight {
+        private final String uuid;
+        private final List<Follower> followers = new ArrayList<>();
+        private boolean started;
+
+        InFlight(final String uuid) {
+            this.uuid = uuid;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A disk backed cache of downloaded files keyed by url. Each entry keeps the
+ * ETag and Last-Modified values the origin sent with the file so that later
+ * downloads of the same url can be revalidated with a conditional GET, and the
+ * cached file reused if the origin responds 304 Not Modified.
+ * <p>
+ * Files are copied in and out of the cache directory rather than hardlinked,
+ * as a converter may rewrite its input file in place, which would also change
+ * a cached file sharing its contents. The least recently used entries are evicted
+ * once the total size of the cache exceeds its maximum size. The index is held
+ * in memory, so the files left in the cache directory by an earlier cache are
+ * deleted when the cache is created. Only files the cache names itself are
+ * removed, anything else in the directory is left alone.
+ */
+public class DownloadCache implements DownloadCacheMBean {
+    private static final Logger LOG = Logger.getLogger(DownloadCache.class.getName());
+
+    private static final String CACHED_FILE_EXTENSION = ".dlcache";
+
+    private final File directory;
+    private final long maxSize;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong uncacheable = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Create a cache that stores its files in the given directory.
+     *
+     * @param directory the directory to hold the cached files, any files left by an earlier cache are deleted
+     * @param maxSize the maximum total size in bytes of the cached files
+     */
+    public DownloadCache(final File directory, final long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOG.log(Level.SEVERE, "Unable to create download cache directory: " + directory.getAbsolutePath());
+        }
+
+        final File[] staleFiles = directory.listFiles((dir, name) -> name.endsWith(CACHED_FILE_EXTENSION));
+        if (staleFiles != null) {
+            for (final File staleFile : staleFiles) {
+                staleFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Get the cached entry for the url.
+     *
+     * @param url the url the file was downloaded from
+     * @return the entry, or null if the url is not cached
+     */
+    public synchronized Entry get(final String url) {
+        return entries.get(url);
+    }
+
+    /**
+     * Place the cached file for the entry at the output file after the origin
+     * has confirmed that it has not been modified.
+     *
+     * @param entry the entry that was revalidated
+     * @param outputFile the file to create
+     * @return true if the output file was created, false if the entry has since been evicted
+     */
+    public boolean copyTo(final Entry entry, final File outputFile) {
+        try {
+            Files.copy(entry.file.toPath(), outputFile.toPath());
+        } catch (final IOException e) {
+            LOG.log(Level.FINE, "Unable to reuse cached file " + entry.file, e);
+            return false;
+        }
+
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(entry.size);
+        return true;
+    }
+
+    /**
+     * Add a freshly downloaded file to the cache. Files without an ETag or
+     * Last-Modified value cannot be revalidated and so are not cached, they are
+     * counted as uncacheable rather than as misses.
+     *
+     * @param url the url the file was downloaded from
+     * @param downloadedFile the downloaded file
+     * @param eTag the ETag the origin sent with the file, or null
+     * @param lastModified the Last-Modified value the origin sent with the file, or null
+     */
+    public void put(final String url, final File downloadedFile, final String eTag, final String lastModified) {
+        final long fileSize = downloadedFile.length();
+        if ((eTag == null && lastModified == null) || fileSize > maxSize) {
+            uncacheable.incrementAndGet();
+            return;
+        }
+
+        misses.incrementAndGet();
+
+        final File cachedFile = new File(directory, UUID.randomUUID() + CACHED_FILE_EXTENSION);
+        try {
+            Files.copy(downloadedFile.toPath(), cachedFile.toPath());
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to add " + url + " to the download cache", e);
+            return;
+        }
+
+        synchronized (this) {
+            final Entry previous = entries.put(url, new Entry(cachedFile, fileSize, eTag, lastModified));
+            if (previous != null) {
+                size -= previous.size;
+                previous.file.delete();
+            }
+            size += fileSize;
+
+            final Iterator<Entry> eldest = entries.values().iterator();
+            while (size > maxSize && eldest.hasNext()) {
+                final Entry evicted = eldest.next();
+                eldest.remove();
+                size -= evicted.size;
+                evicted.file.delete();
+            }
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getUncacheable() {
+        return uncacheable.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        final long hitCount = hits.get();
+        final long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    @Override
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * A cached file along with the validators needed to revalidate it.
+     */
+    public static final class Entry {
+        private final File file;
+        private final long size;
+        private final String eTag;
+        private final String lastModified;
+
+        Entry(final File file, final long size, final String eTag, final String lastModified) {
+            this.file = file;
+            this.size = size;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return the size in bytes of the cached file
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the ETag the origin sent with the file, or null
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return the Last-Modified value the origin sent with the file, or null
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+/**
+ * The metrics of the {@link DownloadCache} that are published over JMX.
+ */
+public interface DownloadCacheMBean {
+
+    /**
+     * @return the number of downloads served from the cache after the origin responded 304 Not Modified
+     */
+    long getHits();
+
+    /**
+     * @return the number of downloads of cacheable files that had to fetch the file from the origin
+     */
+    long getMisses();
+
+    /**
+     * @return the number of downloads that could not be cached, as the origin sent no ETag or Last-Modified value
+     * or the file was larger than the cache, these count as neither hits nor misses
+     */
+    long getUncacheable();
+
+    /**
+     * @return the fraction of downloads of cacheable files served from the cache, between 0 and 1
+     */
+    double getHitRatio();
+
+    /**
+     * @return the total number of bytes that did not have to be downloaded because they were served from the cache
+     */
+    long getBytesSaved();
+
+    /**
+     * @return the number of files currently held in the cache
+     */
+    int getEntryCount();
+
+    /**
+     * @return the total size in bytes of the files currently held in the cache
+     */
+    long getSize();
+}
@@ -18,19 +18,236 @@
  */
 package com.idrsolutions.microservice.utils;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 import javax.naming.SizeLimitExceededException;
 
 /**
  * Static collection of methods to help with downloading files from a url.
+ * <p>
+ * All downloads share a single {@link HttpClient} so that connections (and
+ * HTTP/2 streams) to the same host are pooled and reused between requests.
  */
 public class DownloadHelper {
 
+    private static final Logger LOG = Logger.getLogger(DownloadHelper.class.getName());
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static long connectTimeout = 10000L;
+    private static long readTimeout = 60000L;
+    private static int maxConnectionsPerHost = 8;
+
+    private static volatile HttpClient client;
+
+    private static ExecutorService segmentQueue;
+    private static long rangedThreshold = 64L * 1024 * 1024;
+    private static int segmentsPerFile = 4;
+
+    private static int retries = 2;
+    private static long retryDelay = 1000L;
+    private static long maxRetryDelay = 30000L;
+
+    private static volatile DownloadCache cache;
+
+    private static final Map<String, HostPermits> HOST_PERMITS = new ConcurrentHashMap<>();
+
+    /**
+     * Configure the shared client used for all downloads. Any client created
+     * with the previous configuration is discarded.
+     *
+     * @param connectTimeout the time in milliseconds to wait for a connection to be established
+     * @param readTimeout the time in milliseconds to wait for the response headers once the request is sent, and
+     *                    for each read of the response body
+     * @param maxConnectionsPerHost the maximum number of concurrent requests sent to any one host
+     */
+    public static synchronized void configure(final long connectTimeout, final long readTimeout, final int maxConnectionsPerHost) {
+        DownloadHelper.connectTimeout = connectTimeout;
+        DownloadHelper.readTimeout = readTimeout;
+        DownloadHelper.maxConnectionsPerHost = maxConnectionsPerHost;
+        HOST_PERMITS.clear();
+        client = null;
+    }
+
+    private static HttpClient getClient() {
+        HttpClient httpClient = client;
+        if (httpClient == null) {
+            synchronized (DownloadHelper.class) {
+                httpClient = client;
+                if (httpClient == null) {
+                    httpClient = HttpClient.newBuilder()
+                            .version(HttpClient.Version.HTTP_1_1)
+                            .followRedirects(HttpClient.Redirect.NORMAL)
+                            .connectTimeout(Duration.ofMillis(connectTimeout))
+                            .build();
+                    client = httpClient;
+                }
+            }
+        }
+        return httpClient;
+    }
+
+    /**
+     * Start a request to the uri. HTTP/2 is only asked for over TLS, where it
+     * is negotiated during the handshake. Over plain http the client would
+     * send an h2c upgrade request, which some servers and proxies reject.
+     *
+     * @param uri the uri to request
+     * @return the request builder
+     */
+    private static HttpRequest.Builder newRequest(final URI uri) {
+        final HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(Duration.ofMillis(readTimeout));
+        if ("https".equalsIgnoreCase(uri.getScheme())) {
+            request.version(HttpClient.Version.HTTP_2);
+        }
+        return request;
+    }
+
+    /**
+     * Take a permit for the host of the uri, blocking while the host already
+     * has the maximum number of requests in flight.
+     *
+     * @param uri the uri about to be requested
+     * @return the semaphore the permit was taken from, to be released once the request is complete
+     * @throws InterruptedIOException if interrupted while waiting for a permit
+     */
+    private static HostPermits acquireHostPermit(final URI uri) throws InterruptedIOException {
+        final HostPermits permits = HOST_PERMITS.compute(String.valueOf(uri.getHost()), (host, existing) -> {
+            final HostPermits hostPermits = existing != null ? existing : new HostPermits(host, maxConnectionsPerHost);
+            hostPermits.users++;
+            return hostPermits;
+        });
+        try {
+            permits.acquire();
+        } catch (final InterruptedException e) {
+            leave(permits);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to connect to " + uri.getHost());
+        }
+        return permits;
+    }
+
+    /**
+     * Return a permit taken by {@link #acquireHostPermit(URI)}.
+     *
+     * @param permits the semaphore the permit was taken from
+     */
+    private static void releaseHostPermit(final HostPermits permits) {
+        permits.release();
+        leave(permits);
+    }
+
+    /**
+     * Stop tracking the permits of a host once nothing holds or waits for
+     * one, so that a host is only remembered while it is being downloaded
+     * from.
+     */
+    private static void leave(final HostPermits permits) {
+        HOST_PERMITS.computeIfPresent(permits.host, (host, existing) ->
+                existing == permits && --permits.users == 0 ? null : existing);
+    }
+
+    private static URI toURI(final String url) throws IOException {
+        try {
+            return new URI(url);
+        } catch (final URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Invalid url " + url, e);
+        }
+    }
+
+    private static <T> HttpResponse<T> send(final HttpRequest request, final HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+        try {
+            return getClient().send(request, bodyHandler);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while requesting " + request.uri());
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Invalid request to " + request.uri(), e);
+        }
+    }
+
+    /**
+     * Send a GET request for the uri, failing if the server responds with an
+     * error.
+     *
+     * @param uri the uri to request
+     * @param headers pairs of header names and values to add to the request
+     * @return the response with its body ready to be streamed
+     * @throws IOException when the request fails or the server responds with an error
+     */
+    private static HttpResponse<InputStream> sendGet(final URI uri, final String... headers) throws IOException {
+        final HttpRequest.Builder request = newRequest(uri).GET();
+        for (int i = 0; i < headers.length; i += 2) {
+            request.header(headers[i], headers[i + 1]);
+        }
+
+        // The request timeout only covers the response headers, so the body is given its own timeout for each read
+        final HttpResponse<InputStream> response = send(request.build(), responseInfo -> HttpResponse.BodySubscribers.mapping(
+                HttpResponse.BodySubscribers.ofInputStream(), body -> new ReadTimeoutInputStream(body, readTimeout)));
+
+        if (response.statusCode() >= 400) {
+            response.body().close();
+            throw new IOException("Server returned HTTP response code: " + response.statusCode() + " for URL: " + uri);
+        }
+
+        return response;
+    }
+
+    /**
+     * Get the body of the response, decompressed if the server sent it gzip
+     * encoded.
+     *
+     * @param response the response to read
+     * @return the decoded response body
+     * @throws IOException when the gzip header cannot be read
+     */
+    private static InputStream decodeBody(final HttpResponse<InputStream> response) throws IOException {
+        return isGzipEncoded(response)
+                ? new GZIPInputStream(response.body(), BUFFER_SIZE)
+                : response.body();
+    }
+
+    private static boolean isGzipEncoded(final HttpResponse<?> response) {
+        return "gzip".equals(response.headers().firstValue("Content-Encoding").orElse(null));
+    }
+
+    /**
+     * Send a GET request for the uri and return the decoded response body.
+     *
+     * @param uri the uri to request
+     * @return the response body, decompressed if the server sent it gzip encoded
+     * @throws IOException when the request fails or the server responds with an error
+     */
+    private static InputStream openStream(final URI uri) throws IOException {
+        return decodeBody(sendGet(uri, "Accept-Encoding", "gzip"));
+    }
+
     /**
      * Gets array of file bytes from a url.
      *
@@ -41,40 +258,30 @@ public class DownloadHelper {
      * @throws SizeLimitExceededException when the file size limit is reached
      */
     public static byte[] getFileFromUrl(final String strUrl, final long fileSizeLimit) throws IOException, SizeLimitExceededException {
+        final URI uri = toURI(strUrl);
+        final HostPermits permits = acquireHostPermit(uri);
 
-        final int bufferSize = 1024;
+        try (InputStream input = openStream(uri);
+             ByteArrayOutputStream data = new ByteArrayOutputStream()) {
 
-        final URL url = new URL(strUrl);
-        final HttpURLConnection con = (HttpURLConnection) url.openConnection();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            long fileSize = 0L;
 
-        con.setRequestProperty("Accept-Encoding", "gzip");
-
-        final BufferedInputStream input = new BufferedInputStream(
-                "gzip".equals(con.getContentEncoding())
-                    ? new GZIPInputStream(con.getInputStream())
-                    : con.getInputStream()
-        );
-
-        final ByteArrayOutputStream data = new ByteArrayOutputStream();
-
-        final byte[] buffer = new byte[bufferSize];
-        int count = 0;
-        long fileSize = 0L;
+            while ((count = input.read(buffer)) != -1) {
+                fileSize += count;
+                if (fileSizeLimit > 0 && fileSize > fileSizeLimit) {
+                    throw new SizeLimitExceededException();
+                }
 
-        while ((count = input.read(buffer, 0, bufferSize)) != -1) {
-            fileSize += count;
-            if (fileSizeLimit > 0 && fileSize > fileSizeLimit) {
-                throw new SizeLimitExceededException();
+                data.write(buffer, 0, count);
             }
 
-            data.write(buffer, 0, count);
-        }
-
-        input.close();
-        data.close();
-
-        if (data.size() > 0) {
-            return data.toByteArray();
+            if (data.size() > 0) {
+                return data.toByteArray();
+            }
+        } finally {
+            releaseHostPermit(permits);
         }
 
         throw new IOException();
@@ -91,8 +298,8 @@ public class DownloadHelper {
      * @throws IOException when unable to fetch the file
      * @throws SizeLimitExceededException when the file size limit is reached
      */
-    public static byte[] getFileFromUrl(final String url, int retries, final long fileSizeLimit) throws IOException, SizeLimitExceededException {
-        while (retries > 0) {
+    public static byte[] getFileFromUrl(final String url, final int retries, final long fileSizeLimit) throws IOException, SizeLimitExceededException {
+        for (int attempt = 1; ; attempt++) {
             try {
                 byte[] bytes = getFileFromUrl(url, fileSizeLimit);
 
@@ -102,11 +309,507 @@ public class DownloadHelper {
 
                 return bytes;
             } catch (IOException e) {
-                retries--;
+                if (attempt >= retries || e instanceof InterruptedIOException) {
+                    throw e;
+                }
             }
+            backoff(attempt);
         }
+    }
 
-        throw new IOException();
+    /**
+     * Configure how failed downloads are retried.
+     *
+     * @param retries the number of attempts made to download a file (or segment of a file) before giving up
+     * @param retryDelay the base delay in milliseconds before a retry, doubled after each failed attempt
+     * @param maxRetryDelay the maximum delay in milliseconds before a retry
+     */
+    public static synchronized void configureRetries(final int retries, final long retryDelay, final long maxRetryDelay) {
+        DownloadHelper.retries = retries;
+        DownloadHelper.retryDelay = retryDelay;
+        DownloadHelper.maxRetryDelay = maxRetryDelay;
+    }
+
+    /**
+     * Sleep before the next attempt of a failed request. The delay grows
+     * exponentially with the number of failed attempts and is jittered so that
+     * requests which failed together do not retry together.
+     *
+     * @param attempt the number of attempts that have failed so far
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private static void backoff(final int attempt) throws InterruptedIOException {
+        final long delay = Math.min(maxRetryDelay, retryDelay << Math.min(attempt - 1, 30));
+        try {
+            Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry download");
+        }
+    }
+
+    /**
+     * Download the file at the url directly to the given output file without
+     * holding the file in memory, retrying failures with the configured retry
+     * budget. Any partially written file is deleted if the download fails.
+     *
+     * @param url the url to get the file from
+     * @param outputFile the file to write the downloaded bytes to
+     * @param fileSizeLimit the maximum filesize before stopping the download
+     * @throws IOException when unable to fetch the file or no bytes were downloaded
+     * @throws SizeLimitExceededException when the file size limit is reached
+     */
+    public static void getFileFromUrl(final String url, final File outputFile, final long fileSizeLimit) throws IOException, SizeLimitExceededException {
+        getFileFromUrl(url, outputFile, retries, fileSizeLimit);
+    }
+
+    /**
+     * Download the file at the url directly to the given output file. If after
+     * n attempts the file cannot be retrieved an IOException is thrown.
+     * <p>
+     * When the server supports byte ranges, a failed attempt resumes from the
+     * last byte received rather than downloading the whole file again. If a
+     * {@link DownloadCache} is set and holds the url, the first request is sent
+     * as a conditional GET and the cached file reused if it is unmodified.
+     *
+     * @param url the url to get the file from
+     * @param outputFile the file to write the downloaded bytes to
+     * @param retries the number of attempts to make before giving up
+     * @param fileSizeLimit the maximum filesize before stopping the download
+     * @throws IOException when unable to fetch the file
+     * @throws SizeLimitExceededException when the file size limit is reached
+     */
+    public static void getFileFromUrl(final String url, final File outputFile, final int retries, final long fileSizeLimit) throws IOException, SizeLimitExceededException {
+        final DownloadCache downloadCache = cache;
+        final Transfer transfer = new Transfer(toURI(url), outputFile, fileSizeLimit, downloadCache,
+                downloadCache != null ? downloadCache.get(url) : null);
+
+        boolean success = false;
+        try (transfer) {
+            for (int attempt = 1; !success; attempt++) {
+                final HostPermits permits = acquireHostPermit(transfer.uri);
+                try {
+                    transfer.attempt(permits);
+                    success = true;
+                } catch (final IOException e) {
+                    // Segmented downloads have already retried each of their segments
+                    if (attempt >= retries || transfer.segmented || e instanceof InterruptedIOException) {
+                        throw e;
+                    }
+                    LOG.log(Level.INFO, "Download attempt " + attempt + " of " + url + " failed after "
+                            + transfer.received + " bytes, retrying", e);
+                } finally {
+                    if (transfer.permitLent) {
+                        // An interrupted segmented download lent its permit to the segments and never took it back
+                        leave(permits);
+                    } else {
+                        releaseHostPermit(permits);
+                    }
+                }
+                if (!success) {
+                    backoff(attempt);
+                }
+            }
+        } finally {
+            if (!success) {
+                outputFile.delete();
+            }
+        }
+
+        if (downloadCache != null && !transfer.notModified) {
+            downloadCache.put(url, outputFile, transfer.eTag, transfer.lastModified);
+        }
+    }
+
+    /**
+     * Set the cache used to revalidate and reuse previously downloaded files.
+     *
+     * @param cache the cache to use, or null to disable caching
+     */
+    public static void setCache(final DownloadCache cache) {
+        DownloadHelper.cache = cache;
+    }
+
+    /**
+     * The state of a single stream download that is kept between attempts so
+     * that a failed attempt can be resumed.
+     */
+    private static final class Transfer implements Closeable {
+        private final URI uri;
+        private final File outputFile;
+        private final long fileSizeLimit;
+        private final DownloadCache downloadCache;
+
+        private DownloadCache.Entry cached;
+        private FileChannel channel;
+
+        private long received;
+        private String validator;
+        private String eTag;
+        private String lastModified;
+        private boolean segmented;
+        private boolean notModified;
+        private boolean permitLent;
+
+        Transfer(final URI uri, final File outputFile, final long fileSizeLimit, final DownloadCache downloadCache,
+                 final DownloadCache.Entry cached) {
+            this.uri = uri;
+            this.outputFile = outputFile;
+            this.fileSizeLimit = fileSizeLimit;
+            this.downloadCache = downloadCache;
+            this.cached = cached;
+        }
+
+        private FileChannel getChannel() throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            return channel;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+
+        /**
+         * Make a single attempt to fetch the remainder of the file.
+         *
+         * @param permits the host permits the attempt holds one of
+         * @throws IOException when the attempt fails
+         * @throws SizeLimitExceededException when the file size limit is reached
+         */
+        void attempt(final Semaphore permits) throws IOException, SizeLimitExceededException {
+            if (received > 0 && validator != null) {
+                final HttpResponse<InputStream> response = sendGet(uri, "Range", "bytes=" + received + '-', "If-Range", validator);
+                final String contentRange = response.headers().firstValue("Content-Range").orElse("");
+                if (response.statusCode() == 206 && contentRange.startsWith("bytes " + received + '-')) {
+                    copy(response.body());
+                    return;
+                }
+                // The server ignored the range or the file has changed, so start again with this response
+                restart(response, permits);
+                return;
+            }
+
+            if (cached == null) {
+                restart(sendGet(uri, "Accept-Encoding", "gzip"), permits);
+                return;
+            }
+
+            final List<String> headers = new ArrayList<>(List.of("Accept-Encoding", "gzip"));
+            if (cached.getETag() != null) {
+                headers.add("If-None-Match");
+                headers.add(cached.getETag());
+            }
+            if (cached.getLastModified() != null) {
+                headers.add("If-Modified-Since");
+                headers.add(cached.getLastModified());
+            }
+            final HttpResponse<InputStream> response = sendGet(uri, headers.toArray(new String[0]));
+
+            if (response.statusCode() != 304) {
+                restart(response, permits);
+                return;
+            }
+
+            response.body().close();
+
+            // Only revalidate once, if the cached copy has gone the next attempt fetches the whole file
+            final DownloadCache.Entry entry = cached;
+            cached = null;
+
+            // The cached copy may have been stored by a request with a larger file size limit
+            if (fileSizeLimit > 0 && entry.getSize() > fileSizeLimit) {
+                throw new SizeLimitExceededException();
+            }
+
+            close();
+            outputFile.delete();
+            if (!downloadCache.copyTo(entry, outputFile)) {
+                throw new IOException("Cached copy of " + uri + " is no longer available");
+            }
+            notModified = true;
+        }
+
+        private void restart(final HttpResponse<InputStream> response, final Semaphore permits)
+                throws IOException, SizeLimitExceededException {
+            // Reject oversized files from the response headers before any of the body is read. A gzip encoded
+            // Content-Length is the compressed size, which is still a lower bound on the size of the file.
+            if (fileSizeLimit > 0 && response.headers().firstValueAsLong("Content-Length").orElse(-1L) > fileSizeLimit) {
+                response.body().close();
+                throw new SizeLimitExceededException();
+            }
+
+            final FileChannel fileChannel = getChannel();
+            received = 0;
+            fileChannel.truncate(0);
+            validator = getRangeValidator(response);
+            eTag = response.headers().firstValue("ETag").orElse(null);
+            lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+
+            if (canDownloadInSegments(response)) {
+                segmented = true;
+                downloadInSegments(uri, response, validator, fileChannel, permits, this);
+                received = fileChannel.size();
+                return;
+            }
+
+            copy(decodeBody(response));
+        }
+
+        private void copy(final InputStream body) throws IOException, SizeLimitExceededException {
+            final FileChannel fileChannel = getChannel();
+            try (InputStream input = body) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = input.read(buffer)) != -1) {
+                    if (fileSizeLimit > 0 && received + count > fileSizeLimit) {
+                        throw new SizeLimitExceededException();
+                    }
+                    final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, count);
+                    while (byteBuffer.hasRemaining()) {
+                        received += fileChannel.write(byteBuffer, received);
+                    }
+                }
+            }
+
+            if (received == 0) {
+                throw new IOException("No bytes downloaded from " + uri);
+            }
+        }
+    }
+
+    /**
+     * Get the value to send in the If-Range header when resuming or splitting
+     * the download of this response, so that every range is taken from the
+     * same version of the file.
+     *
+     * @param response the response to a GET request for the whole file
+     * @return the validator, or null if the response cannot be resumed by byte range
+     */
+    private static String getRangeValidator(final HttpResponse<?> response) {
+        if (response.statusCode() != 200 || isGzipEncoded(response)
+                || !response.headers().firstValue("Accept-Ranges").orElse("").contains("bytes")) {
+            return null;
+        }
+
+        // If-Range only accepts strong validators so weak ETags are ignored
+        final String eTag = response.headers().firstValue("ETag").orElse(null);
+        return eTag != null && !eTag.startsWith("W/")
+                ? eTag
+                : response.headers().firstValue("Last-Modified").orElse(null);
+    }
+
+    /**
+     * Configure the downloading of large files as several concurrent byte
+     * range requests.
+     *
+     * @param segmentQueue the executor that segment requests are run on, its size bounds the total number of segments in flight, or null to disable ranged downloads
+     * @param threshold the minimum content length in bytes before a file is downloaded in segments
+     * @param segmentsPerFile the number of segments to split each file into
+     */
+    public static synchronized void configureRangedDownloads(final ExecutorService segmentQueue, final long threshold,
+                                                             final int segmentsPerFile) {
+        DownloadHelper.segmentQueue = segmentQueue;
+        DownloadHelper.rangedThreshold = threshold;
+        DownloadHelper.segmentsPerFile = segmentsPerFile;
+    }
+
+    /**
+     * Check whether the server has said that the file can be requested in
+     * byte ranges and the file is large enough to be worth splitting.
+     *
+     * @param response the response to the initial GET request
+     * @return true if the file should be downloaded in segments
+     */
+    private static boolean canDownloadInSegments(final HttpResponse<?> response) {
+        if (segmentQueue == null || segmentsPerFile < 2 || response.statusCode() != 200 || isGzipEncoded(response)) {
+            return false;
+        }
+
+        final String acceptRanges = response.headers().firstValue("Accept-Ranges").orElse("");
+        final long contentLength = response.headers().firstValueAsLong("Content-Length").orElse(-1L);
+        return acceptRanges.contains("bytes") && contentLength >= rangedThreshold && contentLength > segmentsPerFile;
+    }
+
+    /**
+     * Download the file as several byte ranges that are written at their
+     * offsets into a file preallocated to the full content length. The first
+     * segment is read from the body of the initial response and the remaining
+     * segments are requested concurrently on the segment queue.
+     *
+     * @param uri the uri of the file
+     * @param response the response to the initial GET request
+     * @param validator the ETag or Last-Modified value of the file, or null if neither is known
+     * @param channel the channel of the output file
+     * @param permits the host permits the initial request holds one of
+     * @param transfer the transfer, marked as having lent its permit if interrupted before taking it back
+     * @throws IOException when any segment fails to download
+     */
+    private static void downloadInSegments(final URI uri, final HttpResponse<InputStream> response,
+                                           final String validator, final FileChannel channel,
+                                           final Semaphore permits, final Transfer transfer) throws IOException {
+        final long contentLength = response.headers().firstValueAsLong("Content-Length").orElse(-1L);
+        final long segmentSize = (contentLength + segmentsPerFile - 1) / segmentsPerFile;
+
+        boolean success = false;
+        final List<Future<?>> segments = new ArrayList<>();
+        final InputStream body = response.body();
+        try {
+            // Preallocate the file so every segment can be written at its offset
+            channel.write(ByteBuffer.allocate(1), contentLength - 1);
+
+            for (long start = segmentSize; start < contentLength; start += segmentSize) {
+                final long segmentStart = start;
+                final long segmentEnd = Math.min(start + segmentSize, contentLength) - 1;
+                segments.add(segmentQueue.submit(() -> {
+                    downloadSegment(uri, validator, channel, segmentStart, segmentEnd);
+                    return null;
+                }));
+            }
+
+            final long firstSegmentLength;
+            try (InputStream input = body) {
+                firstSegmentLength = writeToChannel(input, channel, 0, segmentSize);
+            }
+
+            // The initial connection is finished, so its host permit is lent to the segments while they are
+            // waited for. Holding it could leave the segments unable to connect at all.
+            permits.release();
+            transfer.permitLent = true;
+            boolean interrupted = false;
+            try {
+                if (firstSegmentLength != segmentSize) {
+                    // The initial connection dropped early, so fetch what is missing as a range instead
+                    downloadSegment(uri, validator, channel, firstSegmentLength, segmentSize - 1);
+                }
+
+                for (final Future<?> segment : segments) {
+                    segment.get();
+                }
+            } catch (final InterruptedException e) {
+                interrupted = true;
+                throw e;
+            } finally {
+                // A cancelled download stops here rather than waiting for a permit it would only give back
+                if (!interrupted && !Thread.currentThread().isInterrupted()) {
+                    permits.acquire();
+                    transfer.permitLent = false;
+                }
+            }
+            success = true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + uri);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            if (!success) {
+                segments.forEach(segment -> segment.cancel(true));
+                // Closing the body again does nothing if the first segment was read, otherwise it frees the connection
+                try {
+                    body.close();
+                } catch (final IOException e) {
+                    LOG.log(Level.FINE, "Unable to close the response from " + uri, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Request a single byte range of the file and write it at its offset in
+     * the channel. Failed requests are retried with backoff, resuming from the
+     * last byte of the range that was received.
+     *
+     * @param uri the uri of the file
+     * @param validator the ETag or Last-Modified value of the file, or null if neither is known
+     * @param channel the channel to write the segment to
+     * @param start the offset of the first byte of the segment
+     * @param end the offset of the last byte of the segment (inclusive)
+     * @throws IOException when the segment cannot be fetched in full
+     */
+    private static void downloadSegment(final URI uri, final String validator, final FileChannel channel,
+                                        final long start, final long end) throws IOException {
+        long position = start;
+        for (int attempt = 1; ; attempt++) {
+            final String range = "bytes=" + position + '-' + end;
+
+            // Segments count towards the connection limit for the host like any other request
+            final HostPermits permits = acquireHostPermit(uri);
+            try {
+                HttpResponse<InputStream> response = null;
+                try {
+                    response = validator != null
+                            ? sendGet(uri, "Range", range, "If-Range", validator)
+                            : sendGet(uri, "Range", range);
+                } catch (final IOException e) {
+                    if (attempt >= retries || e instanceof InterruptedIOException) {
+                        throw e;
+                    }
+                }
+
+                if (response != null) {
+                    try (InputStream input = response.body()) {
+                        final String contentRange = response.headers().firstValue("Content-Range").orElse("");
+                        if (response.statusCode() != 206 || !contentRange.startsWith("bytes " + position + '-')) {
+                            // Retrying will not help if the server does not honour the range or the file has changed
+                            throw new IOException("Server did not honour range " + range + " for " + uri);
+                        }
+
+                        position += writeToChannel(input, channel, position, end - position + 1);
+                    }
+                }
+            } finally {
+                releaseHostPermit(permits);
+            }
+
+            if (position > end) {
+                return;
+            }
+            if (attempt >= retries) {
+                throw new IOException("Connection closed before range " + range + " of " + uri + " was received");
+            }
+            backoff(attempt);
+        }
+    }
+
+    /**
+     * Copy up to length bytes from the stream into the channel starting at
+     * the given position. If the stream fails part way through, the bytes
+     * already copied remain in the channel.
+     *
+     * @param input the stream to read from
+     * @param channel the channel to write to
+     * @param position the position in the channel to write the first byte to
+     * @param length the maximum number of bytes to copy
+     * @return the number of bytes copied, which is less than length if the stream ended early or failed
+     * @throws InterruptedIOException if the copy was interrupted
+     */
+    private static long writeToChannel(final InputStream input, final FileChannel channel, final long position,
+                                       final long length) throws InterruptedIOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long written = 0;
+        try {
+            int count;
+            while (written < length
+                    && (count = input.read(buffer, 0, (int) Math.min(buffer.length, length - written))) != -1) {
+                final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, count);
+                while (byteBuffer.hasRemaining()) {
+                    written += channel.write(byteBuffer, position + written);
+                }
+            }
+        } catch (final InterruptedIOException | ClosedByInterruptException e) {
+            throw new InterruptedIOException("Interrupted while downloading");
+        } catch (final IOException e) {
+            LOG.log(Level.FINE, "Stream failed after " + written + " bytes", e);
+        }
+        return written;
     }
 
     /**
@@ -114,15 +817,22 @@ public class DownloadHelper {
      * found at the specified url
      *
      * @param url the location of the file
-     * @return The content-length of the file
-     * @throws IOException when the connection fails to open or there is a
-     * protocol exception when setting the request method to HEAD
+     * @return The content-length of the file, or -1 if it is not known
+     * @throws IOException when the request fails
      */
     public static long getFileSizeFromUrl(final String url) throws IOException {
-        final URL fileUrl = new URL(url);
-        final HttpURLConnection connection = (HttpURLConnection) fileUrl.openConnection();
-        connection.setRequestMethod("HEAD");
-        return connection.getContentLengthLong();
+        final URI uri = toURI(url);
+        final HttpRequest request = newRequest(uri)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build();
+
+        final HostPermits permits = acquireHostPermit(uri);
+        try {
+            return send(request, HttpResponse.BodyHandlers.discarding())
+                    .headers().firstValueAsLong("Content-Length").orElse(-1L);
+        } finally {
+            releaseHostPermit(permits);
+        }
     }
 
     /**
@@ -153,4 +863,23 @@ public class DownloadHelper {
         return name;
     }
 
+    /**
+     * The connection limit for a single host, along with the number of
+     * requests holding or waiting for one of its permits.
+     */
+    private static final class HostPermits extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String host;
+        /**
+         * Only changed inside {@link #HOST_PERMITS} map operations for the host.
+         */
+        private int users;
+
+        HostPermits(final String host, final int permits) {
+            super(permits, true);
+            this.host = host;
+        }
+    }
 }
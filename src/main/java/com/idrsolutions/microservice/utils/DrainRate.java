@@ -0,0 +1,76 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+/**
+ * Tracks the rate at which tasks complete over a window of the most recent
+ * completions, used to estimate how long it will be until a queued task
+ * completes and frees its place in the queue.
+ */
+public class DrainRate {
+
+    private static final int WINDOW = 64;
+    private static final long DEFAULT_RETRY_AFTER = 30;
+    private static final long MAX_RETRY_AFTER = 3600;
+
+    private final long[] completions = new long[WINDOW];
+    private int count;
+    private int next;
+
+    /**
+     * Record that a task has completed.
+     */
+    public synchronized void recordCompletion() {
+        completions[next] = System.nanoTime();
+        next = (next + 1) % WINDOW;
+        if (count < WINDOW) {
+            count++;
+        }
+    }
+
+    /**
+     * Get the recent rate of completions.
+     *
+     * @return the number of tasks completed per second, or 0 if not enough tasks have completed to tell
+     */
+    public synchronized double getRate() {
+        if (count < 2) {
+            return 0;
+        }
+
+        final long newest = completions[(next + WINDOW - 1) % WINDOW];
+        final long oldest = completions[count < WINDOW ? 0 : next];
+        final long elapsed = Math.max(System.nanoTime(), newest) - oldest;
+        return elapsed <= 0 ? 0 : (count - 1) * 1e9 / elapsed;
+    }
+
+    /**
+     * Estimate how long it will be until the next task completes at the
+     * recent rate, which is when a full queue next has space.
+     *
+     * @return the estimated number of seconds, between 1 and 3600
+     */
+    public long estimateSeconds() {
+        final double rate = getRate();
+        if (rate <= 0) {
+            return DEFAULT_RETRY_AFTER;
+        }
+        return Math.max(1, Math.min(MAX_RETRY_AFTER, (long) Math.ceil(1 / rate)));
+    }
+}
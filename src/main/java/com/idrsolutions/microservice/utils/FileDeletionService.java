@@ -33,6 +33,7 @@ import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -57,7 +58,22 @@ public class FileDeletionService {
      * @param frequency the frequency in minutes that the service will run
      */
     public FileDeletionService(final String[] dirs, final long fileLifeSpan, final long frequency) {
-        setUpService(dirs, fileLifeSpan, frequency);
+        this(dirs, fileLifeSpan, frequency, file -> 0);
+    }
+
+    /**
+     * Create an instance of the FileDeletionService for directories holding
+     * files that are reused without being modified, such as hardlinks to the
+     * output of an earlier conversion.
+     *
+     * @param dirs the root directories that will be scanned for files that should be deleted
+     * @param fileLifeSpan the life span in milliseconds of the files before they should be deleted
+     * @param frequency the frequency in minutes that the service will run
+     * @param reusedTime gives the time in milliseconds a file was last reused, or 0 if it has not been
+     */
+    public FileDeletionService(final String[] dirs, final long fileLifeSpan, final long frequency,
+                               final ToLongFunction<File> reusedTime) {
+        setUpService(dirs, fileLifeSpan, frequency, reusedTime);
     }
 
     /**
@@ -68,8 +84,10 @@ public class FileDeletionService {
      * @param dirs the root directories that will be scanned for files that should be deleted
      * @param fileLifeSpan the life span in milliseconds of the files before they should be deleted
      * @param frequency the frequency in minutes that the service will run
+     * @param reusedTime gives the time in milliseconds a file was last reused, or 0 if it has not been
      */
-    private void setUpService(final String[] dirs, final long fileLifeSpan, final long frequency) {
+    private void setUpService(final String[] dirs, final long fileLifeSpan, final long frequency,
+                              final ToLongFunction<File> reusedTime) {
         final Runnable deleteFiles = () -> {
             if (dirs != null) {
                 final long currentTime = new Date().getTime();
@@ -83,7 +101,7 @@ public class FileDeletionService {
                         if (fileDir.exists() && files != null) {
                             Arrays.stream(files)
                                     .filter(file -> {
-                                        final long lastModified = getLastModified(file);
+                                        final long lastModified = Math.max(getLastModified(file), reusedTime.applyAsLong(file));
                                         return lastModified < timeToDelete;
                                     })
                                     .filter(file -> {
@@ -92,7 +110,8 @@ public class FileDeletionService {
                                             final Map<String, String> status = DBHandler.getInstance().getStatus(uuidFromFileName);
                                             return status == null
                                                     || "processed".equals(status.get("state"))
-                                                    || "error".equals(status.get("state"));
+                                                    || "error".equals(status.get("state"))
+                                                    || "cancelled".equals(status.get("state"));
                                         } catch (SQLException e) {
                                             final String message = String.format("Error finding status for conversion (%s)", uuidFromFileName);
                                             LOG.log(Level.WARNING, message, e);
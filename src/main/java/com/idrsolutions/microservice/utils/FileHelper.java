@@ -18,10 +18,18 @@
  */
 package com.idrsolutions.microservice.utils;
 
+import javax.naming.SizeLimitExceededException;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
 
 public class FileHelper {
 
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
     /**
      * Delete a folder and all of its contents.
      *
@@ -40,4 +48,66 @@ public class FileHelper {
         dirPath.delete();
     }
 
+    /**
+     * Copy the contents of the stream to the given file in fixed size chunks so
+     * that the memory used does not depend on the size of the stream. The file
+     * size limit is enforced as the data is copied and any partially written
+     * file is deleted if the copy fails.
+     *
+     * @param input the stream to copy from (not closed by this method)
+     * @param outputFile the file to write to
+     * @param fileSizeLimit the maximum number of bytes to copy, or a value less than 1 for no limit
+     * @return the number of bytes written to the file
+     * @throws IOException when the stream cannot be read or the file cannot be written
+     * @throws SizeLimitExceededException when the stream contains more bytes than the file size limit
+     */
+    public static long writeToFile(final InputStream input, final File outputFile, final long fileSizeLimit)
+            throws IOException, SizeLimitExceededException {
+        return writeToFile(input, outputFile, fileSizeLimit, null);
+    }
+
+    /**
+     * Copy the contents of the stream to the given file in fixed size chunks,
+     * updating the digest with every byte copied so that the file can be
+     * hashed without reading it a second time.
+     *
+     * @param input the stream to copy from (not closed by this method)
+     * @param outputFile the file to write to
+     * @param fileSizeLimit the maximum number of bytes to copy, or a value less than 1 for no limit
+     * @param digest the digest to update with the copied bytes, or null
+     * @return the number of bytes written to the file
+     * @throws IOException when the stream cannot be read or the file cannot be written
+     * @throws InterruptedIOException when the thread is interrupted during the copy
+     * @throws SizeLimitExceededException when the stream contains more bytes than the file size limit
+     * @see #writeToFile(InputStream, File, long)
+     */
+    public static long writeToFile(final InputStream input, final File outputFile, final long fileSizeLimit,
+                                   final MessageDigest digest) throws IOException, SizeLimitExceededException {
+        boolean success = false;
+        try (FileOutputStream output = new FileOutputStream(outputFile)) {
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long fileSize = 0L;
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Interrupted while writing " + outputFile.getName());
+                }
+                fileSize += count;
+                if (fileSizeLimit > 0 && fileSize > fileSizeLimit) {
+                    throw new SizeLimitExceededException();
+                }
+                output.write(buffer, 0, count);
+                if (digest != null) {
+                    digest.update(buffer, 0, count);
+                }
+            }
+            success = true;
+            return fileSize;
+        } finally {
+            if (!success) {
+                outputFile.delete();
+            }
+        }
+    }
+
 }
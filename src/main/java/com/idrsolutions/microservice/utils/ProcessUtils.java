@@ -22,6 +22,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -47,6 +50,16 @@ public class ProcessUtils {
 
     private static final Logger LOG = Logger.getLogger(ProcessUtils.class.getName());
 
+    /**
+     * The processes currently running for each conversion.
+     */
+    private static final Map<String, Set<Process>> PROCESSES = new ConcurrentHashMap<>();
+
+    /**
+     * The results that conversions whose processes were killed should report.
+     */
+    private static final Map<String, Result> KILLED = new ConcurrentHashMap<>();
+
     public static ProcessUtils.Result runProcess(final String[] processCommand, final File workingDirectory, final String uuid, final String processIdentifier, final long timeoutDuration) {
 
         final Process process;
@@ -59,16 +72,36 @@ public class ProcessUtils {
 
         setupStandardOutputLogger(process);
 
+        final Set<Process> processes = PROCESSES.computeIfAbsent(uuid, key -> ConcurrentHashMap.newKeySet());
+        processes.add(process);
         try {
+            // The conversion may have been killed while the process was starting
+            if (KILLED.containsKey(uuid)) {
+                destroyTree(process);
+                return KILLED.get(uuid);
+            }
+
             if (!process.waitFor(timeoutDuration, TimeUnit.MILLISECONDS)) {
                 process.destroy();
                 LOG.log(Level.SEVERE, "Process " + processIdentifier + " for " + uuid + " timed out after " + timeoutDuration + "ms");
                 return ProcessUtils.Result.TIMEOUT;
             }
         } catch (final InterruptedException e) {
-            process.destroyForcibly();
+            destroyTree(process);
+            final Result killedResult = KILLED.get(uuid);
+            if (killedResult != null) {
+                return killedResult;
+            }
             LOG.log(Level.INFO, "Terminated child process " + processIdentifier + ' ' + uuid + " for shutdown.");
             return Result.ERROR;
+        } finally {
+            processes.remove(process);
+        }
+
+        final Result killedResult = KILLED.get(uuid);
+        if (killedResult != null) {
+            LOG.log(Level.INFO, "Process " + processIdentifier + " for " + uuid + " was killed");
+            return killedResult;
         }
 
         final int v = process.exitValue();
@@ -80,6 +113,58 @@ public class ProcessUtils {
         return Result.SUCCESS;
     }
 
+    /**
+     * Forcibly stop every process running for a conversion, along with the
+     * processes they started. The conversion is not allowed to start any more
+     * processes until {@link #endConversion(String)} is called, and
+     * {@link #runProcess(String[], File, String, String, long)} reports the
+     * given result for it. Does nothing if the conversion has not been
+     * started with {@link #startConversion(String)} or has already ended.
+     *
+     * @param uuid the uuid of the conversion
+     * @param result the result to report for the conversion's processes
+     */
+    public static void killProcesses(final String uuid, final Result result) {
+        // Recorded under the entry's lock so endConversion cannot remove it in between and leave the kill behind
+        final Set<Process> processes = PROCESSES.computeIfPresent(uuid, (key, running) -> {
+            KILLED.put(uuid, result);
+            return running;
+        });
+        if (processes != null) {
+            for (final Process process : processes) {
+                LOG.log(Level.INFO, "Killing process " + process.pid() + " for " + uuid);
+                destroyTree(process);
+            }
+        }
+    }
+
+    /**
+     * Track a conversion from when it starts, so that it can be killed before
+     * it has run any processes.
+     *
+     * @param uuid the uuid of the conversion
+     */
+    public static void startConversion(final String uuid) {
+        PROCESSES.computeIfAbsent(uuid, key -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * Forget a conversion once it has finished, so that its uuid is no longer
+     * prevented from running processes.
+     *
+     * @param uuid the uuid of the conversion
+     */
+    public static void endConversion(final String uuid) {
+        // Once the entry is gone no further kills are recorded for the uuid
+        PROCESSES.remove(uuid);
+        KILLED.remove(uuid);
+    }
+
+    private static void destroyTree(final Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
     private static void setupStandardOutputLogger(final Process process) {
         final BufferedReader outRead = new BufferedReader(new InputStreamReader(process.getInputStream()));
         final Thread stdOutReaderThread = new Thread(() -> {
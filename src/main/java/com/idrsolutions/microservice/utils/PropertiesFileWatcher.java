@@ -0,0 +1,78 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a properties file and runs a task whenever the file is changed,
+ * so that configuration can be applied without a restart. The file is
+ * checked by polling its last modified time.
+ */
+public class PropertiesFileWatcher {
+    private static final Logger LOG = Logger.getLogger(PropertiesFileWatcher.class.getName());
+
+    private final ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
+
+    /**
+     * Create an instance of the PropertiesFileWatcher
+     *
+     * @param file the properties file to watch
+     * @param frequency the frequency in seconds that the file is checked
+     * @param onChange the task to run when the file changes
+     */
+    public PropertiesFileWatcher(final File file, final long frequency, final Runnable onChange) {
+        final long[] lastModified = {file.lastModified()};
+        scheduledExecutorService.scheduleWithFixedDelay(() -> {
+            final long modified = file.lastModified();
+            if (modified != lastModified[0]) {
+                lastModified[0] = modified;
+                try {
+                    onChange.run();
+                } catch (final RuntimeException e) {
+                    LOG.log(Level.SEVERE, "Failed to apply changes to " + file.getAbsolutePath(), e);
+                }
+            }
+        }, frequency, frequency, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop watching the file. See {@link ScheduledExecutorService#shutdownNow()}
+     */
+    public void shutdownNow() {
+        scheduledExecutorService.shutdownNow();
+    }
+
+    /**
+     * Wait for the watcher to stop. See {@link ScheduledExecutorService#awaitTermination(long, TimeUnit)}
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout argument
+     * @return true if the watcher stopped, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return scheduledExecutorService.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps a stream that may block forever waiting for data, such as the body
+ * of an HTTP response from a server that has stopped sending, so that a read
+ * that waits longer than the timeout fails instead. The stream is closed and
+ * the blocked reader interrupted, and the read throws an
+ * {@link HttpTimeoutException} which can be handled like any other failed
+ * read.
+ * <p>
+ * Only time spent blocked in a read counts towards the timeout, not time
+ * spent by the reader doing something else between reads. The timeout is
+ * checked once a second by a single daemon thread shared by every stream,
+ * which stops when there are no open streams. Streams stop being checked once
+ * they are closed or have been read to the end.
+ */
+final class ReadTimeoutInputStream extends FilterInputStream {
+
+    private static final long CHECK_INTERVAL = 1000L;
+
+    private static final Set<ReadTimeoutInputStream> OPEN = ConcurrentHashMap.newKeySet();
+
+    private static final ScheduledThreadPoolExecutor CHECKER = new ScheduledThreadPoolExecutor(1, runnable -> {
+        final Thread thread = new Thread(runnable, "download-read-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static boolean checking;
+
+    static {
+        CHECKER.setKeepAliveTime(CHECK_INTERVAL * 2, TimeUnit.MILLISECONDS);
+        CHECKER.allowCoreThreadTimeOut(true);
+    }
+
+    private final long timeoutNanos;
+
+    private Thread reader;
+    private long readStartedAt;
+    private boolean timedOut;
+    private boolean interruptSent;
+
+    /**
+     * Wrap the stream.
+     *
+     * @param in the stream to read from
+     * @param timeout the time in milliseconds a single read may wait for data
+     */
+    ReadTimeoutInputStream(final InputStream in, final long timeout) {
+        super(in);
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        OPEN.add(this);
+        startChecking();
+    }
+
+    @Override
+    public int read() throws IOException {
+        beginRead();
+        boolean finished = false;
+        try {
+            final int result = in.read();
+            finished = true;
+            if (result == -1) {
+                OPEN.remove(this);
+            }
+            return result;
+        } finally {
+            endRead(finished);
+        }
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        beginRead();
+        boolean finished = false;
+        try {
+            final int result = in.read(b, off, len);
+            finished = true;
+            if (result == -1) {
+                OPEN.remove(this);
+            }
+            return result;
+        } finally {
+            endRead(finished);
+        }
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        beginRead();
+        boolean finished = false;
+        try {
+            final long result = in.skip(n);
+            finished = true;
+            return result;
+        } finally {
+            endRead(finished);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        OPEN.remove(this);
+        super.close();
+    }
+
+    private synchronized void beginRead() throws HttpTimeoutException {
+        if (timedOut) {
+            throw timeoutException();
+        }
+        reader = Thread.currentThread();
+        readStartedAt = System.nanoTime();
+    }
+
+    /**
+     * @param finished true if the read returned normally
+     * @throws HttpTimeoutException if the read timed out, replacing whatever the interrupted read threw
+     */
+    private synchronized void endRead(final boolean finished) throws HttpTimeoutException {
+        reader = null;
+        if (interruptSent) {
+            // Clear the interrupt used to stop the read so that it does not affect whatever the thread does next.
+            // An interrupt the thread already had, such as a cancellation, is left for the caller to see.
+            interruptSent = false;
+            Thread.interrupted();
+        }
+        if (timedOut && !finished) {
+            throw timeoutException();
+        }
+    }
+
+    private HttpTimeoutException timeoutException() {
+        return new HttpTimeoutException("No data received for " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms");
+    }
+
+    private void check(final long now) {
+        synchronized (this) {
+            if (reader == null || timedOut || now - readStartedAt < timeoutNanos) {
+                return;
+            }
+            timedOut = true;
+            if (!reader.isInterrupted()) {
+                interruptSent = true;
+                reader.interrupt();
+            }
+        }
+        OPEN.remove(this);
+        try {
+            in.close();
+        } catch (final IOException e) {
+            // The stream is being abandoned anyway
+        }
+    }
+
+    private static synchronized void startChecking() {
+        if (!checking) {
+            checking = true;
+            CHECKER.schedule(ReadTimeoutInputStream::checkAll, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void checkAll() {
+        final long now = System.nanoTime();
+        for (final ReadTimeoutInputStream stream : OPEN) {
+            stream.check(now);
+        }
+        synchronized (ReadTimeoutInputStream.class) {
+            if (OPEN.isEmpty()) {
+                checking = false;
+            } else {
+                CHECKER.schedule(ReadTimeoutInputStream::checkAll, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+/**
+ * An executor whose number of concurrently running tasks can be changed
+ * while it is in use, without discarding the tasks waiting to run.
+ */
+public interface ResizableExecutor {
+
+    /**
+     * @return the number of tasks that may run at the same time
+     */
+    int getThreadCount();
+
+    /**
+     * Change the number of tasks that may run at the same time. When reduced,
+     * running tasks are left to finish and fewer waiting tasks are started
+     * until the running count falls below the new limit.
+     *
+     * @param threadCount the number of tasks that may run at the same time
+     */
+    void setThreadCount(int threadCount);
+}
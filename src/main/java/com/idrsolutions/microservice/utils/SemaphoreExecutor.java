@@ -0,0 +1,229 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An executor that starts a new thread for every task and limits how many
+ * tasks run at once with a semaphore rather than a pool size. Intended for
+ * virtual threads, where blocked threads are cheap enough that thousands of
+ * tasks waiting on the network cost little.
+ * <p>
+ * Tasks that cannot run straight away wait for a permit on their own thread,
+ * and at most a set number of tasks may wait. Permits are handed out in the
+ * order tasks were submitted, so new tasks cannot overtake waiting ones.
+ * {@link #shutdownNow()}
+ * interrupts every thread, including those still waiting, and so always
+ * returns an empty list.
+ */
+public class SemaphoreExecutor extends AbstractExecutorService implements AdmissionControl, ResizableExecutor {
+
+    private static final Logger LOG = Logger.getLogger(SemaphoreExecutor.class.getName());
+
+    private final ThreadFactory threadFactory;
+    private final ResizableSemaphore permits;
+    private final int queueSize;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private final DrainRate drainRate = new DrainRate();
+    private final Object termination = new Object();
+
+    private volatile boolean shutdown;
+    private int concurrency;
+
+    /**
+     * Create the executor.
+     *
+     * @param threadFactory the factory for the threads that run each task
+     * @param concurrency the number of tasks that may run at the same time
+     * @param queueSize the maximum number of tasks waiting to run, or {@link Integer#MAX_VALUE} for no limit
+     */
+    public SemaphoreExecutor(final ThreadFactory threadFactory, final int concurrency, final int queueSize) {
+        this.threadFactory = threadFactory;
+        this.permits = new ResizableSemaphore(concurrency);
+        this.concurrency = concurrency;
+        this.queueSize = queueSize;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+
+        dispatch(command);
+    }
+
+    /**
+     * Start a thread for the task whether or not the executor has been shut
+     * down, for tasks that were accepted before the shutdown.
+     *
+     * @param command the task to run
+     * @throws RejectedExecutionException if too many tasks are already waiting
+     */
+    void dispatch(final Runnable command) {
+        final boolean acquired = tryAcquirePermit();
+        if (!acquired && waiting.incrementAndGet() > queueSize) {
+            waiting.decrementAndGet();
+            throw new RejectedExecutionException("Queue is full");
+        }
+
+        final Thread thread = threadFactory.newThread(() -> run(command, acquired));
+        threads.add(thread);
+        thread.start();
+    }
+
+    private boolean tryAcquirePermit() {
+        try {
+            // Unlike tryAcquire(), a timed tryAcquire honours the fair ordering of the tasks already waiting
+            return permits.tryAcquire(0, TimeUnit.NANOSECONDS);
+        } catch (final InterruptedException e) {
+            // The task waits for a permit on its own thread instead
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void run(final Runnable command, final boolean acquired) {
+        try {
+            if (!acquired) {
+                try {
+                    permits.acquire();
+                } catch (final InterruptedException e) {
+                    return;
+                } finally {
+                    waiting.decrementAndGet();
+                }
+            }
+
+            try {
+                command.run();
+            } catch (final Throwable e) {
+                LOG.log(Level.SEVERE, "Task failed", e);
+            } finally {
+                permits.release();
+                drainRate.recordCompletion();
+            }
+        } finally {
+            threads.remove(Thread.currentThread());
+            if (shutdown && threads.isEmpty()) {
+                synchronized (termination) {
+                    termination.notifyAll();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized int getThreadCount() {
+        return concurrency;
+    }
+
+    @Override
+    public synchronized void setThreadCount(final int threadCount) {
+        if (threadCount > concurrency) {
+            permits.release(threadCount - concurrency);
+        } else {
+            // Permits held by running tasks are taken away as they are released
+            permits.reducePermits(concurrency - threadCount);
+        }
+        concurrency = threadCount;
+    }
+
+    @Override
+    public boolean isSaturated() {
+        return waiting.get() >= queueSize;
+    }
+
+    @Override
+    public long getRetryAfter() {
+        return drainRate.estimateSeconds();
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        synchronized (termination) {
+            termination.notifyAll();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        for (final Thread thread : threads) {
+            thread.interrupt();
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && threads.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (termination) {
+            while (!isTerminated()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(termination, remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A fair semaphore whose number of permits can be reduced.
+     */
+    private static class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(final int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(final int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
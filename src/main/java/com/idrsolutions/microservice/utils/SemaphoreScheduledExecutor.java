@@ -0,0 +1,249 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link SemaphoreExecutor} that can also run tasks after a delay. A single
+ * timer thread waits out the delays and then hands each task to a thread of
+ * its own, so slow tasks never hold up the timer.
+ * <p>
+ * A periodic task is put back on the timer each time a run finishes, so runs
+ * of the same task never overlap. As with
+ * {@link ScheduledThreadPoolExecutor}, a run that throws stops the task, and
+ * after {@link #shutdown()} delayed tasks that are already waiting still run
+ * while periodic tasks stop.
+ */
+public class SemaphoreScheduledExecutor extends SemaphoreExecutor implements ScheduledExecutorService {
+
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Create the executor.
+     *
+     * @param threadFactory the factory for the threads that run each task
+     * @param concurrency the number of tasks that may run at the same time
+     */
+    public SemaphoreScheduledExecutor(final ThreadFactory threadFactory, final int concurrency) {
+        super(threadFactory, concurrency, Integer.MAX_VALUE);
+        timer = new ScheduledThreadPoolExecutor(1, Executors.defaultThreadFactory());
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit) {
+        return schedule(Executors.callable(command), delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(final Callable<V> callable, final long delay, final TimeUnit unit) {
+        final FutureTask<V> task = new FutureTask<>(callable);
+        final ScheduledFuture<?> timing = timer.schedule(() -> {
+            try {
+                // The task was accepted before any shutdown, so it still runs
+                dispatch(task);
+            } catch (final RejectedExecutionException e) {
+                task.cancel(false);
+            }
+        }, delay, unit);
+        return new DelayedTask<>(task, timing);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(final Runnable command, final long initialDelay, final long period,
+                                                  final TimeUnit unit) {
+        return schedulePeriodic(command, initialDelay, period, unit, true);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable command, final long initialDelay, final long delay,
+                                                     final TimeUnit unit) {
+        return schedulePeriodic(command, initialDelay, delay, unit, false);
+    }
+
+    private ScheduledFuture<?> schedulePeriodic(final Runnable command, final long initialDelay, final long period,
+                                                final TimeUnit unit, final boolean fixedRate) {
+        if (command == null || unit == null) {
+            throw new NullPointerException();
+        }
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive");
+        }
+        final PeriodicTask task = new PeriodicTask(command, System.nanoTime() + unit.toNanos(initialDelay),
+                unit.toNanos(period), fixedRate);
+        task.schedule();
+        return task;
+    }
+
+    @Override
+    public void shutdown() {
+        timer.shutdown();
+        super.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        timer.shutdownNow();
+        return super.shutdownNow();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return timer.isTerminated() && super.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        return timer.awaitTermination(timeout, unit)
+                && super.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * A task waiting on the timer, whose result comes from the thread it is
+     * handed to once the delay has passed.
+     */
+    private static class DelayedTask<V> implements ScheduledFuture<V> {
+
+        private final FutureTask<V> task;
+        private final ScheduledFuture<?> timing;
+
+        DelayedTask(final FutureTask<V> task, final ScheduledFuture<?> timing) {
+            this.task = task;
+            this.timing = timing;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return timing.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(final Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            timing.cancel(false);
+            return task.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return task.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return task.isDone();
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            return task.get();
+        }
+
+        @Override
+        public V get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return task.get(timeout, unit);
+        }
+    }
+
+    /**
+     * A task that runs repeatedly until it is cancelled or a run throws. Each
+     * run is handed to a thread of its own like any other task, and the next
+     * run is put on the timer once it finishes.
+     */
+    private final class PeriodicTask extends FutureTask<Void> implements ScheduledFuture<Void> {
+
+        private final long period;
+        private final boolean fixedRate;
+
+        /**
+         * The value of {@link System#nanoTime()} when the task should next run.
+         */
+        private volatile long time;
+        private volatile ScheduledFuture<?> timing;
+
+        PeriodicTask(final Runnable command, final long time, final long period, final boolean fixedRate) {
+            super(command, null);
+            this.time = time;
+            this.period = period;
+            this.fixedRate = fixedRate;
+        }
+
+        void schedule() {
+            timing = timer.schedule(() -> {
+                try {
+                    // Rejected once the executor is shut down, which stops the task
+                    execute(this);
+                } catch (final RejectedExecutionException e) {
+                    cancel(false);
+                }
+            }, time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run() {
+            if (runAndReset()) {
+                time = fixedRate ? time + period : System.nanoTime() + period;
+                try {
+                    schedule();
+                } catch (final RejectedExecutionException e) {
+                    // The executor has been shut down
+                    cancel(false);
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            final ScheduledFuture<?> pending = timing;
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            return cancelled;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
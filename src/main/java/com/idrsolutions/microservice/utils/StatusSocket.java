@@ -0,0 +1,70 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A WebSocket endpoint over which a client can follow the status of many
+ * conversions at once.
+ * <p>
+ * The client sends {"subscribe": ["uuid", ...]} and {"unsubscribe": ["uuid", ...]}
+ * messages, and is sent JSON objects keyed by uuid holding the parts of each
+ * conversion's status that have changed since it was last sent, such as
+ * {"uuid": {"state": "processing", "pagesConverted": "3"}}. A conversion is
+ * unsubscribed automatically once it reaches a terminal state.
+ * <p>
+ * The endpoint is registered with a {@link StatusSocketHub} in the user
+ * properties of its configuration under {@link #HUB_PROPERTY}.
+ */
+public class StatusSocket extends Endpoint {
+    private static final Logger LOG = Logger.getLogger(StatusSocket.class.getName());
+
+    /**
+     * The key of the {@link StatusSocketHub} in the endpoint configuration's user properties.
+     */
+    public static final String HUB_PROPERTY = StatusSocketHub.class.getName();
+
+    private StatusSocketHub.Client client;
+
+    @Override
+    public void onOpen(final Session session, final EndpointConfig config) {
+        final StatusSocketHub hub = (StatusSocketHub) config.getUserProperties().get(HUB_PROPERTY);
+        client = hub.connect(session);
+        session.addMessageHandler(String.class, (MessageHandler.Whole<String>) client::onMessage);
+    }
+
+    @Override
+    public void onClose(final Session session, final CloseReason closeReason) {
+        if (client != null) {
+            client.disconnect();
+        }
+    }
+
+    @Override
+    public void onError(final Session session, final Throwable thr) {
+        LOG.log(Level.FINE, "Status socket error", thr);
+    }
+}
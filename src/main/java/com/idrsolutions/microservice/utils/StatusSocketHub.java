@@ -0,0 +1,349 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+import com.idrsolutions.microservice.db.DBHandler;
+import com.idrsolutions.microservice.db.StatusListener;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the conversions the clients of the {@link StatusSocket} are
+ * subscribed to and sends them the changes to their status.
+ * <p>
+ * When a conversion changes, its status is read once for every client
+ * subscribed to it. Each client has a single send in flight at a time, and
+ * the conversions that change while a send is in flight are combined into
+ * the next message, so a slow client costs a set of uuids rather than a
+ * growing queue of messages.
+ */
+public class StatusSocketHub implements StatusListener {
+    private static final Logger LOG = Logger.getLogger(StatusSocketHub.class.getName());
+
+    private static final Set<String> TERMINAL_STATES = new HashSet<>(Arrays.asList("processed", "error", "cancelled"));
+
+    private final Executor executor;
+    private final int maxSubscriptions;
+    private final Map<String, Topic> topics = new ConcurrentHashMap<>();
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create the hub and start listening for status changes.
+     *
+     * @param executor the executor that reads the status of changed conversions
+     * @param maxSubscriptions the maximum number of conversions a single client may subscribe to
+     */
+    public StatusSocketHub(final Executor executor, final int maxSubscriptions) {
+        this.executor = executor;
+        this.maxSubscriptions = maxSubscriptions;
+        DBHandler.addStatusListener(this);
+    }
+
+    Client connect(final Session session) {
+        final Client client = new Client(session);
+        clients.add(client);
+        return client;
+    }
+
+    @Override
+    public void statusChanged(final String uuid) {
+        final Topic topic = topics.get(uuid);
+        if (topic != null) {
+            topic.schedule();
+        }
+    }
+
+    /**
+     * Stop listening for status changes and close every connected client.
+     */
+    public void close() {
+        DBHandler.removeStatusListener(this);
+        for (final Client client : clients) {
+            try {
+                client.session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "Server shutting down"));
+            } catch (final IOException e) {
+                LOG.log(Level.FINE, "Unable to close status socket", e);
+            }
+        }
+        clients.clear();
+        topics.clear();
+    }
+
+    private void subscribe(final String uuid, final Client client) {
+        final Topic topic = topics.compute(uuid, (key, existing) -> {
+            final Topic subscribed = existing != null ? existing : new Topic(key);
+            subscribed.clients.add(client);
+            return subscribed;
+        });
+        // Read the status for the new subscriber, the other subscribers only receive it if it has changed
+        topic.schedule();
+    }
+
+    private void unsubscribe(final String uuid, final Client client) {
+        topics.computeIfPresent(uuid, (key, topic) -> {
+            topic.clients.remove(client);
+            return topic.clients.isEmpty() ? null : topic;
+        });
+    }
+
+    /**
+     * A conversion and the clients subscribed to it.
+     */
+    private final class Topic {
+        private final String uuid;
+        private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile Map<String, String> status;
+
+        Topic(final String uuid) {
+            this.uuid = uuid;
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this::refresh);
+                } catch (final RejectedExecutionException e) {
+                    scheduled.set(false);
+                    LOG.log(Level.WARNING, "Unable to send status update for " + uuid, e);
+                }
+            }
+        }
+
+        private synchronized void refresh() {
+            scheduled.set(false);
+            try {
+                final Map<String, String> current = DBHandler.getInstance().getStatus(uuid);
+                status = current != null ? current : Collections.emptyMap();
+            } catch (final SQLException e) {
+                LOG.log(Level.SEVERE, "Database error while sending status of " + uuid, e);
+                return;
+            }
+            for (final Client client : clients) {
+                client.changed(uuid);
+            }
+        }
+    }
+
+    /**
+     * A connected client, with the status it was last sent for each of its
+     * conversions.
+     */
+    final class Client {
+        private final Session session;
+        private final Map<String, Map<String, String>> sent = new HashMap<>();
+        private final Set<String> changed = new LinkedHashSet<>();
+        private final Queue<String> replies = new ArrayDeque<>();
+        private boolean sending;
+        private boolean closed;
+
+        Client(final Session session) {
+            this.session = session;
+        }
+
+        void onMessage(final String message) {
+            final JsonObject json;
+            try {
+                json = Json.createReader(new StringReader(message)).readObject();
+            } catch (final JsonException | IllegalStateException e) {
+                reply("Invalid message");
+                return;
+            }
+
+            final JsonArray unsubscribe = getArray(json, "unsubscribe");
+            final JsonArray subscribe = getArray(json, "subscribe");
+            if (unsubscribe == null && subscribe == null) {
+                reply("Expected a subscribe or unsubscribe list of uuids");
+                return;
+            }
+
+            if (unsubscribe != null) {
+                for (final JsonValue value : unsubscribe) {
+                    if (value instanceof JsonString) {
+                        final String uuid = ((JsonString) value).getString();
+                        synchronized (this) {
+                            sent.remove(uuid);
+                            changed.remove(uuid);
+                        }
+                        unsubscribe(uuid, this);
+                    }
+                }
+            }
+
+            if (subscribe != null) {
+                for (final JsonValue value : subscribe) {
+                    if (value instanceof JsonString) {
+                        final String uuid = ((JsonString) value).getString();
+                        synchronized (this) {
+                            if (closed || sent.containsKey(uuid)) {
+                                continue;
+                            }
+                            if (sent.size() >= maxSubscriptions) {
+                                reply("Subscribed to the maximum of " + maxSubscriptions + " conversions");
+                                break;
+                            }
+                            sent.put(uuid, Collections.emptyMap());
+                        }
+                        subscribe(uuid, this);
+                    }
+                }
+            }
+        }
+
+        private JsonArray getArray(final JsonObject json, final String key) {
+            final JsonValue value = json.get(key);
+            return value instanceof JsonArray ? (JsonArray) value : null;
+        }
+
+        void disconnect() {
+            final Set<String> subscribed;
+            synchronized (this) {
+                closed = true;
+                subscribed = new HashSet<>(sent.keySet());
+                sent.clear();
+                changed.clear();
+                replies.clear();
+            }
+            for (final String uuid : subscribed) {
+                unsubscribe(uuid, this);
+            }
+            clients.remove(this);
+        }
+
+        synchronized void changed(final String uuid) {
+            if (!closed && sent.containsKey(uuid)) {
+                changed.add(uuid);
+                sendNext();
+            }
+        }
+
+        private synchronized void reply(final String error) {
+            if (!closed) {
+                replies.add(Json.createObjectBuilder().add("error", error).build().toString());
+                sendNext();
+            }
+        }
+
+        /**
+         * Send the next reply, or the changes to every conversion that has
+         * changed since the last message, unless a send is already in flight.
+         */
+        private void sendNext() {
+            if (sending || closed) {
+                return;
+            }
+
+            String message = replies.poll();
+            if (message == null) {
+                message = buildChanges();
+            }
+            if (message == null) {
+                return;
+            }
+
+            sending = true;
+            session.getAsyncRemote().sendText(message, result -> {
+                synchronized (this) {
+                    sending = false;
+                    if (result.isOK()) {
+                        sendNext();
+                    }
+                }
+                if (!result.isOK()) {
+                    // The client has gone away, the socket is closed and cleaned up by the container
+                    LOG.log(Level.FINE, "Unable to send status update", result.getException());
+                }
+            });
+        }
+
+        private String buildChanges() {
+            final JsonObjectBuilder json = Json.createObjectBuilder();
+            final Set<String> finished = new HashSet<>();
+            boolean hasChanges = false;
+
+            for (final String uuid : changed) {
+                final Topic topic = topics.get(uuid);
+                final Map<String, String> status = topic != null ? topic.status : null;
+                if (status == null) {
+                    continue;
+                }
+
+                final JsonObjectBuilder delta = Json.createObjectBuilder();
+                final Map<String, String> previous = sent.get(uuid);
+                boolean hasDelta = false;
+                if (status.isEmpty()) {
+                    delta.add("error", "Unknown uuid");
+                    hasDelta = true;
+                    finished.add(uuid);
+                } else {
+                    for (final Map.Entry<String, String> entry : status.entrySet()) {
+                        if (!Objects.equals(entry.getValue(), previous.get(entry.getKey()))) {
+                            delta.add(entry.getKey(), entry.getValue());
+                            hasDelta = true;
+                        }
+                    }
+                    if (TERMINAL_STATES.contains(status.get("state"))) {
+                        finished.add(uuid);
+                    }
+                }
+
+                if (hasDelta) {
+                    json.add(uuid, delta);
+                    hasChanges = true;
+                }
+                sent.put(uuid, status);
+            }
+            changed.clear();
+
+            for (final String uuid : finished) {
+                sent.remove(uuid);
+                unsubscribe(uuid, this);
+            }
+
+            return hasChanges ? json.build().toString() : null;
+        }
+    }
+}
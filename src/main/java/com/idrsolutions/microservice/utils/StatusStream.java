@@ -0,0 +1,375 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+import com.idrsolutions.microservice.db.DBHandler;
+import com.idrsolutions.microservice.db.StatusListener;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes the status of conversions to clients as Server-Sent Events, so that
+ * they do not have to poll for it.
+ * <p>
+ * A status event is sent when a client subscribes and whenever the state,
+ * error or custom values of the conversion change. Changes that arrive while
+ * an event is waiting to be sent are combined into one, and the status is
+ * read once for all the clients subscribed to a conversion. The stream is
+ * closed once the conversion reaches a terminal state.
+ * <p>
+ * Events are written without blocking, so a slow client only delays its own
+ * events and never those of other clients; a client that cannot keep up only
+ * receives the latest status. A comment is sent to idle clients periodically
+ * so that streams to clients that have gone away are closed rather than held
+ * open until the conversion finishes.
+ */
+public class StatusStream implements StatusListener {
+    private static final Logger LOG = Logger.getLogger(StatusStream.class.getName());
+
+    private static final Set<String> TERMINAL_STATES = new HashSet<>(Arrays.asList("processed", "error", "cancelled"));
+
+    private static final long HEARTBEAT_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+
+    /**
+     * How long a client can go without accepting any data before its stream is closed.
+     */
+    private static final long WRITE_TIMEOUT = HEARTBEAT_INTERVAL * 2;
+
+    private static final byte[] HEARTBEAT = ": heartbeat\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final ScheduledExecutorService executor;
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * Create the stream and start listening for status changes.
+     *
+     * @param executor the executor that reads the status and sends events and heartbeats to clients
+     */
+    public StatusStream(final ScheduledExecutorService executor) {
+        this.executor = executor;
+        DBHandler.addStatusListener(this);
+        scheduleHeartbeat();
+    }
+
+    /**
+     * Send the status of the conversion to the client now and whenever it
+     * changes. The response must already have been set up as an event stream.
+     *
+     * @param uuid the uuid of the conversion
+     * @param asyncContext the asynchronous context of the client's request
+     */
+    public void subscribe(final String uuid, final AsyncContext asyncContext) {
+        // The container should not cut the stream off, it is completed on a terminal state,
+        // a failed write or a client that stops accepting data
+        asyncContext.setTimeout(0);
+
+        final Subscriber subscriber;
+        try {
+            subscriber = new Subscriber(asyncContext);
+        } catch (final IOException | IllegalStateException e) {
+            LOG.log(Level.WARNING, "Unable to open status stream for " + uuid, e);
+            complete(asyncContext);
+            return;
+        }
+
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(final AsyncEvent event) {
+                unsubscribe(uuid, subscriber);
+            }
+
+            @Override
+            public void onTimeout(final AsyncEvent event) {
+                unsubscribe(uuid, subscriber);
+            }
+
+            @Override
+            public void onError(final AsyncEvent event) {
+                unsubscribe(uuid, subscriber);
+            }
+
+            @Override
+            public void onStartAsync(final AsyncEvent event) {
+            }
+        });
+
+        final Channel channel = channels.compute(uuid, (key, existing) -> {
+            final Channel subscribed = existing != null ? existing : new Channel(key);
+            subscribed.subscribers.add(subscriber);
+            return subscribed;
+        });
+        channel.sendCurrent(subscriber);
+    }
+
+    private void unsubscribe(final String uuid, final Subscriber subscriber) {
+        channels.computeIfPresent(uuid, (key, channel) -> {
+            channel.subscribers.remove(subscriber);
+            return channel.subscribers.isEmpty() ? null : channel;
+        });
+    }
+
+    @Override
+    public void statusChanged(final String uuid) {
+        final Channel channel = channels.get(uuid);
+        if (channel != null) {
+            channel.schedule();
+        }
+    }
+
+    /**
+     * Stop listening for status changes and close every open stream.
+     */
+    public void close() {
+        closed = true;
+        DBHandler.removeStatusListener(this);
+        for (final Channel channel : channels.values()) {
+            for (final Subscriber subscriber : channel.subscribers) {
+                subscriber.close();
+            }
+        }
+        channels.clear();
+    }
+
+    private void scheduleHeartbeat() {
+        if (closed) {
+            return;
+        }
+        try {
+            executor.schedule(this::heartbeat, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    private void heartbeat() {
+        final long now = System.currentTimeMillis();
+        for (final Channel channel : channels.values()) {
+            for (final Subscriber subscriber : channel.subscribers) {
+                subscriber.heartbeat(now);
+            }
+        }
+        scheduleHeartbeat();
+    }
+
+    private static void complete(final AsyncContext asyncContext) {
+        try {
+            asyncContext.complete();
+        } catch (final IllegalStateException e) {
+            // Already completed
+        }
+    }
+
+    /**
+     * The clients subscribed to a single conversion.
+     */
+    private final class Channel {
+        private final String uuid;
+        private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Channel(final String uuid) {
+            this.uuid = uuid;
+        }
+
+        /**
+         * Send the current status to a new subscriber, reading it under the
+         * same lock as the events for later changes so that the subscriber
+         * never receives an older status after a newer one.
+         */
+        synchronized void sendCurrent(final Subscriber subscriber) {
+            final Map<String, String> status = readStatus();
+            if (status == null) {
+                subscriber.close();
+            } else {
+                subscriber.send(toEvent(status), isTerminal(status));
+            }
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this::flush);
+                } catch (final RejectedExecutionException e) {
+                    scheduled.set(false);
+                    LOG.log(Level.WARNING, "Unable to send status event for " + uuid, e);
+                }
+            }
+        }
+
+        private synchronized void flush() {
+            scheduled.set(false);
+            final Map<String, String> status = readStatus();
+            final byte[] event = status != null ? toEvent(status) : null;
+            final boolean terminal = status != null && isTerminal(status);
+            for (final Subscriber subscriber : subscribers) {
+                if (event == null) {
+                    subscriber.close();
+                } else {
+                    subscriber.send(event, terminal);
+                }
+            }
+        }
+
+        /**
+         * @return the current status of the conversion, or null if it no longer exists
+         */
+        private Map<String, String> readStatus() {
+            try {
+                return DBHandler.getInstance().getStatus(uuid);
+            } catch (final SQLException e) {
+                LOG.log(Level.SEVERE, "Database error while streaming status of " + uuid, e);
+                return null;
+            }
+        }
+
+        private boolean isTerminal(final Map<String, String> status) {
+            return TERMINAL_STATES.contains(status.get("state"));
+        }
+
+        private byte[] toEvent(final Map<String, String> status) {
+            final JsonObjectBuilder json = Json.createObjectBuilder();
+            status.forEach(json::add);
+            return ("event: status\ndata: " + json.build() + "\n\n").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * A single client's stream, written to only when the container reports
+     * that it can be written to without blocking. Only the latest event is
+     * kept while the client is not ready for it.
+     */
+    private static final class Subscriber implements WriteListener {
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream out;
+        private byte[] pending;
+        private boolean unflushed;
+        private boolean last;
+        private boolean closed;
+        /**
+         * When the oldest data the client has not yet accepted was queued, or 0 if there is none.
+         */
+        private long waitingSince;
+
+        Subscriber(final AsyncContext asyncContext) throws IOException {
+            this.asyncContext = asyncContext;
+            out = asyncContext.getResponse().getOutputStream();
+            out.setWriteListener(this);
+        }
+
+        synchronized void send(final byte[] event, final boolean last) {
+            if (closed) {
+                return;
+            }
+            pending = event;
+            this.last |= last;
+            if (waitingSince == 0) {
+                waitingSince = System.currentTimeMillis();
+            }
+            drain();
+        }
+
+        synchronized void heartbeat(final long now) {
+            if (closed) {
+                return;
+            }
+            if (waitingSince != 0) {
+                if (now - waitingSince > WRITE_TIMEOUT) {
+                    // The client has stopped reading
+                    close();
+                }
+            } else {
+                pending = HEARTBEAT;
+                waitingSince = now;
+                drain();
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            pending = null;
+            complete(asyncContext);
+        }
+
+        @Override
+        public synchronized void onWritePossible() {
+            if (!closed) {
+                drain();
+            }
+        }
+
+        @Override
+        public synchronized void onError(final Throwable t) {
+            // The client has gone away
+            close();
+        }
+
+        /**
+         * Write and flush as much as the container allows without blocking.
+         * When it does not allow any more, it calls {@link #onWritePossible()}
+         * once it does.
+         */
+        private void drain() {
+            try {
+                while (out.isReady()) {
+                    if (pending != null) {
+                        final byte[] event = pending;
+                        pending = null;
+                        out.write(event);
+                        unflushed = true;
+                    } else if (unflushed) {
+                        unflushed = false;
+                        out.flush();
+                    } else {
+                        waitingSince = 0;
+                        if (last) {
+                            close();
+                        }
+                        return;
+                    }
+                }
+            } catch (final IOException | IllegalStateException e) {
+                // The client has gone away
+                close();
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+import com.idrsolutions.microservice.db.DBHandler;
+import com.idrsolutions.microservice.db.StatusListener;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parks long-poll status requests until the status of their conversion
+ * changes.
+ * <p>
+ * A parked request is dispatched back to the servlet as soon as the version
+ * of the conversion's status moves past the version the client already has,
+ * or once its wait has expired, and the servlet then responds with the
+ * current status as it would to any other request.
+ */
+public class StatusWaiters implements StatusListener {
+    private static final Logger LOG = Logger.getLogger(StatusWaiters.class.getName());
+
+    private final long maxWait;
+    private final Map<String, Set<AsyncContext>> waiting = new ConcurrentHashMap<>();
+
+    /**
+     * Create the waiters and start listening for status changes.
+     *
+     * @param maxWait the longest time in milliseconds a request may be parked for
+     */
+    public StatusWaiters(final long maxWait) {
+        this.maxWait = maxWait;
+        DBHandler.addStatusListener(this);
+    }
+
+    /**
+     * @return the longest time in milliseconds a request may be parked for
+     */
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Park a request until the status version of the conversion is no longer
+     * the given version or the wait expires, then dispatch it back to the
+     * servlet.
+     *
+     * @param uuid the uuid of the conversion
+     * @param version the status version the client already has
+     * @param wait the time in milliseconds to wait for, capped at the maximum wait
+     * @param asyncContext the asynchronous context of the client's request
+     */
+    public void park(final String uuid, final long version, final long wait, final AsyncContext asyncContext) {
+        asyncContext.setTimeout(Math.min(wait, maxWait));
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(final AsyncEvent event) {
+                remove(uuid, asyncContext);
+            }
+
+            @Override
+            public void onTimeout(final AsyncEvent event) {
+                resume(uuid, asyncContext);
+            }
+
+            @Override
+            public void onError(final AsyncEvent event) {
+                remove(uuid, asyncContext);
+            }
+
+            @Override
+            public void onStartAsync(final AsyncEvent event) {
+            }
+        });
+
+        waiting.compute(uuid, (key, parked) -> {
+            final Set<AsyncContext> requests = parked != null ? parked : ConcurrentHashMap.newKeySet();
+            requests.add(asyncContext);
+            return requests;
+        });
+
+        // The status may have changed between the client's version being checked and the request being parked
+        try {
+            if (DBHandler.getInstance().getVersion(uuid) != version) {
+                resume(uuid, asyncContext);
+            }
+        } catch (final SQLException e) {
+            LOG.log(Level.SEVERE, "Database error while parking status request for " + uuid, e);
+            resume(uuid, asyncContext);
+        }
+    }
+
+    @Override
+    public void statusChanged(final String uuid) {
+        final Set<AsyncContext> parked = waiting.remove(uuid);
+        if (parked != null) {
+            parked.forEach(StatusWaiters::dispatch);
+        }
+    }
+
+    /**
+     * Stop listening for status changes and send every parked request back to
+     * the servlet.
+     */
+    public void close() {
+        DBHandler.removeStatusListener(this);
+        for (final String uuid : waiting.keySet()) {
+            statusChanged(uuid);
+        }
+    }
+
+    private void resume(final String uuid, final AsyncContext asyncContext) {
+        if (remove(uuid, asyncContext)) {
+            dispatch(asyncContext);
+        }
+    }
+
+    /**
+     * @return true if the request was parked, false if it has already been dispatched
+     */
+    private boolean remove(final String uuid, final AsyncContext asyncContext) {
+        final boolean[] removed = new boolean[1];
+        waiting.computeIfPresent(uuid, (key, parked) -> {
+            removed[0] = parked.remove(asyncContext);
+            return parked.isEmpty() ? null : parked;
+        });
+        return removed[0];
+    }
+
+    private static void dispatch(final AsyncContext asyncContext) {
+        try {
+            asyncContext.dispatch();
+        } catch (final IllegalStateException e) {
+            // The request has already completed
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Base Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/base-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice.utils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Samples how heavily the machine and the microservice's own processes are
+ * loaded. Each measurement returns a negative value when it is not available
+ * on the current platform.
+ */
+public final class SystemLoad {
+
+    private SystemLoad() {
+    }
+
+    /**
+     * @return the recent CPU utilisation of the whole machine between 0 and 1, or a negative value if unknown
+     */
+    public static double getCpuLoad() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getCpuLoad();
+        }
+        final double loadAverage = os.getSystemLoadAverage();
+        return loadAverage < 0 ? -1 : Math.min(1, loadAverage / os.getAvailableProcessors());
+    }
+
+    /**
+     * Get the fraction of the maximum heap size that was still in use after
+     * the most recent garbage collection of each heap pool. Garbage that has
+     * not been collected yet is not counted, so this does not report the heap
+     * as full just because a collection is due. If no collection has happened
+     * yet the current usage is used instead.
+     *
+     * @return the fraction of the maximum heap size that is not in use, between 0 and 1
+     */
+    public static double getFreeHeapRatio() {
+        final Runtime runtime = Runtime.getRuntime();
+        long used = 0;
+        boolean collected = false;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            final MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && usage != null) {
+                used += usage.getUsed();
+                collected |= usage.getCommitted() > 0;
+            }
+        }
+        if (!collected) {
+            used = runtime.totalMemory() - runtime.freeMemory();
+        }
+        return Math.max(0, 1 - (double) used / runtime.maxMemory());
+    }
+
+    /**
+     * Get the physical memory that can be allocated without swapping. Unlike
+     * the free memory, this includes the page cache that the kernel would
+     * reclaim, which on a busy machine is most of the memory not in use. This
+     * is MemAvailable from /proc/meminfo, reduced to what is left under the
+     * cgroup's memory limit when running in a limited container. Elsewhere
+     * the free memory is used.
+     *
+     * @return the available physical memory of the machine in bytes, or a negative value if unknown
+     */
+    public static long getAvailablePhysicalMemory() {
+        long available = readKiloBytes(Paths.get("/proc/meminfo"), "MemAvailable:");
+        if (available < 0) {
+            final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            if (os instanceof com.sun.management.OperatingSystemMXBean) {
+                available = ((com.sun.management.OperatingSystemMXBean) os).getFreeMemorySize();
+            }
+        }
+        final long cgroupAvailable = getCgroupAvailableMemory();
+        if (cgroupAvailable >= 0) {
+            available = available < 0 ? cgroupAvailable : Math.min(available, cgroupAvailable);
+        }
+        return available;
+    }
+
+    /**
+     * Get the memory left under the cgroup v2 memory limit, counting the
+     * inactive file cache the kernel would reclaim before enforcing the limit
+     * as available.
+     *
+     * @return the available memory in bytes, or a negative value if there is no limit or it is unknown
+     */
+    private static long getCgroupAvailableMemory() {
+        final Path cgroup = Paths.get("/sys/fs/cgroup");
+        try {
+            final String max = new String(Files.readAllBytes(cgroup.resolve("memory.max"))).trim();
+            if ("max".equals(max)) {
+                return -1;
+            }
+            final long current = Long.parseLong(new String(Files.readAllBytes(cgroup.resolve("memory.current"))).trim());
+            long inactiveFile = 0;
+            for (final String line : Files.readAllLines(cgroup.resolve("memory.stat"))) {
+                // Reported in bytes, for example "inactive_file 123456"
+                if (line.startsWith("inactive_file ")) {
+                    inactiveFile = Long.parseLong(line.substring("inactive_file ".length()).trim());
+                    break;
+                }
+            }
+            return Math.max(0, Long.parseLong(max) - (current - inactiveFile));
+        } catch (final IOException | NumberFormatException e) {
+            // Not running under cgroup v2 with the memory controller
+            return -1;
+        }
+    }
+
+    /**
+     * @return the total physical memory of the machine in bytes, or a negative value if unknown
+     */
+    public static long getTotalPhysicalMemory() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getTotalMemorySize();
+        }
+        return -1;
+    }
+
+    /**
+     * Get the combined resident set size of every process started by this
+     * JVM, such as LibreOffice or a converter run in its own JVM. This is read
+     * from /proc, so is only known on Linux.
+     *
+     * @return the resident memory of the child processes in bytes, or a negative value if unknown
+     */
+    public static long getChildProcessRss() {
+        if (!Files.isDirectory(Paths.get("/proc/self"))) {
+            return -1;
+        }
+        return ProcessHandle.current().descendants().mapToLong(process -> getRss(process.pid())).sum();
+    }
+
+    private static long getRss(final long pid) {
+        // The process may have exited since it was listed
+        return Math.max(0, readKiloBytes(Paths.get("/proc", String.valueOf(pid), "status"), "VmRSS:"));
+    }
+
+    /**
+     * Read a value reported in kB from a /proc file, for example "VmRSS:	  123456 kB".
+     *
+     * @return the value in bytes, or a negative value if it could not be read
+     */
+    private static long readKiloBytes(final Path file, final String field) {
+        try {
+            final List<String> lines = Files.readAllLines(file);
+            for (final String line : lines) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (final IOException | NumberFormatException e) {
+            // Not available on this platform
+        }
+        return -1;
+    }
+}